@@ -0,0 +1,279 @@
+/*-
+ * #%L
+ * Online Mastodon Exports
+ * %%
+ * Copyright (C) 2021 - 2024 Vladimír Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cz.it4i.ulman.transfers;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import cz.it4i.ulman.transfers.embeddings.FlatView;
+import cz.it4i.ulman.transfers.graphexport.AsyncGraphExportable;
+import cz.it4i.ulman.transfers.graphics.GraphicsRecorder;
+import org.mastodon.mamut.ProjectModel;
+import org.mastodon.mamut.io.ProjectLoader;
+import org.scijava.Context;
+import org.scijava.command.Command;
+import org.scijava.command.CommandModule;
+import org.scijava.command.CommandService;
+import org.scijava.log.LogService;
+import org.scijava.log.Logger;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Runs the exports without the Mastodon GUI, e.g. on cluster nodes. Every job opens one
+ * .mastodon project, runs one exporter with the parameters given in the job description,
+ * and sends its output to a listening Blender or, if the output starts with "file:", records
+ * it into a file (see GraphicsRecorder) which can be replayed into a Blender later.
+ */
+public class BatchExports {
+	public static final String KEY_PROJECT = "project";
+	public static final String KEY_EXPORTER = "exporter";
+	public static final String KEY_OUTPUT = "output";
+	public static final String KEY_RECORDING = "recording";
+	public static final String PREFIX_SORTER = "sorter.";
+	public static final String PREFIX_DIALOG = "dialog.";
+
+	public static final String USAGE = "Usage: BatchExports job_file [job_file ...]\n"
+			+ "A job file is either a .properties file with one job, or a .json file with\n"
+			+ "one job object or an array of them. Recognized keys of a job are:\n"
+			+ "  "+KEY_PROJECT+"   path to the .mastodon project\n"
+			+ "  "+KEY_EXPORTER+"  FullLineageToBlender, LineageExporter, FlatView, or replay\n"
+			+ "  "+KEY_OUTPUT+"    hostname:port of a Blender, or file:path to record into,\n"
+			+ "            or the .graphml file for the yEd target of the LineageExporter,\n"
+			+ "            or the .mlin file for its Binary target\n"
+			+ "  "+KEY_RECORDING+" the recorded file to be sent to the output (replay only)\n"
+			+ "  "+PREFIX_SORTER+"*  parameters of the sorter of daughters (LineageExporter only)\n"
+			+ "  "+PREFIX_DIALOG+"*  parameters of the export target (LineageExporter only)\n"
+			+ "and all other keys are handed over as they are to the exporter.";
+
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.out.println(USAGE);
+			System.exit(1);
+		}
+
+		System.setProperty("java.awt.headless", "true");
+		final Context ctx = new Context();
+		final Logger log = ctx.getService(LogService.class).subLogger("batch exports");
+
+		int failedJobs = 0;
+		try {
+			for (String jobFile : args) {
+				final List<Map<String,String>> jobs;
+				try {
+					jobs = readJobs(new File(jobFile));
+				} catch (IOException | RuntimeException e) {
+					log.error("Cannot read jobs from "+jobFile+": "+e.getMessage());
+					++failedJobs;
+					continue;
+				}
+				for (Map<String,String> job : jobs)
+					if (!runJob(ctx, job, log)) ++failedJobs;
+			}
+		} finally {
+			try {
+				BlenderSendingUtils.closeNotNeededConnections();
+				GraphicsRecorder.closeAllRecordings();
+			} catch (IOException | InterruptedException e) {
+				log.error("Failed closing the outputs: "+e.getMessage());
+				++failedJobs;
+			}
+			ctx.dispose();
+		}
+
+		if (failedJobs > 0) log.error(failedJobs+" job(s) failed");
+		//NB: gRPC leaves some non-daemon threads behind
+		System.exit(failedJobs == 0 ? 0 : 1);
+	}
+
+	/** reads one job from a .properties file, or one or more jobs from a .json file;
+	 *  nested JSON objects are flattened with dots, e.g. {"sorter":{"a":1}} into sorter.a=1 */
+	public static List<Map<String,String>> readJobs(final File jobFile)
+	throws IOException {
+		final List<Map<String,String>> jobs = new ArrayList<>();
+		try (Reader reader = new FileReader(jobFile)) {
+			if (jobFile.getName().toLowerCase().endsWith(".json")) {
+				final JsonElement root = JsonParser.parseReader(reader);
+				if (root.isJsonArray()) {
+					for (JsonElement job : root.getAsJsonArray()) {
+						final Map<String,String> params = new HashMap<>();
+						flattenJson("", job.getAsJsonObject(), params);
+						jobs.add(params);
+					}
+				} else {
+					final Map<String,String> params = new HashMap<>();
+					flattenJson("", root.getAsJsonObject(), params);
+					jobs.add(params);
+				}
+			} else {
+				final Properties props = new Properties();
+				props.load(reader);
+				final Map<String,String> params = new HashMap<>();
+				for (String key : props.stringPropertyNames()) params.put(key, props.getProperty(key));
+				jobs.add(params);
+			}
+		}
+		return jobs;
+	}
+
+	private static void flattenJson(final String prefix, final JsonObject obj, final Map<String,String> params) {
+		for (Map.Entry<String,JsonElement> e : obj.entrySet()) {
+			if (e.getValue().isJsonObject()) flattenJson(prefix+e.getKey()+".", e.getValue().getAsJsonObject(), params);
+			else if (!e.getValue().isJsonNull()) params.put(prefix+e.getKey(), e.getValue().getAsString());
+		}
+	}
+
+	/** returns true if the job went fine */
+	public static boolean runJob(final Context ctx, final Map<String,String> job, final Logger log) {
+		final String exporter = job.get(KEY_EXPORTER);
+		final String output = job.get(KEY_OUTPUT);
+		if (exporter == null) {
+			log.error("Job is missing the '"+KEY_EXPORTER+"' key, skipping it.");
+			return false;
+		}
+
+		try {
+			if (exporter.equals("replay")) return replay(job, log);
+
+			final String projectPath = job.get(KEY_PROJECT);
+			if (projectPath == null) {
+				log.error("Job is missing the '"+KEY_PROJECT+"' key, skipping it.");
+				return false;
+			}
+			log.info("Exporting "+projectPath+" with "+exporter+(output != null ? " into "+output : ""));
+
+			//NB: no GUI state, and no need for the image data
+			final ProjectModel projectModel = ProjectLoader.open(projectPath, ctx, false, true);
+			try {
+				final Map<String,Object> params = new HashMap<>();
+				final Map<String,Object> sorterParams = new HashMap<>();
+				final Map<String,Object> dialogParams = new HashMap<>();
+				for (Map.Entry<String,String> e : job.entrySet()) {
+					final String key = e.getKey();
+					if (key.startsWith(PREFIX_SORTER)) sorterParams.put(key.substring(PREFIX_SORTER.length()), e.getValue());
+					else if (key.startsWith(PREFIX_DIALOG)) dialogParams.put(key.substring(PREFIX_DIALOG.length()), e.getValue());
+					else if (!key.equals(KEY_PROJECT) && !key.equals(KEY_EXPORTER) && !key.equals(KEY_OUTPUT))
+						params.put(key, e.getValue());
+				}
+				params.put("projectModel", projectModel);
+
+				final Class<? extends Command> command;
+				switch (exporter) {
+				case "FullLineageToBlender":
+					command = FullLineageToBlender.class;
+					if (output != null) params.put("connectURL", output);
+					break;
+				case "FlatView":
+					command = FlatView.class;
+					if (output != null) params.put("connectURL", output);
+					break;
+				case "LineageExporter":
+					command = LineageExporter.class;
+					params.putIfAbsent("projectID", projectModel.getProjectName());
+					if (output != null) {
+						final String target = String.valueOf(params.get("exportTarget"));
+						if (target.startsWith("yEd")) dialogParams.put("graphMLfile", output);
+						else if (target.startsWith("Binary")) dialogParams.put("lineageFile", output);
+						else dialogParams.put("url", output);
+					}
+					params.put("sorterDialogParams", sorterParams);
+					params.put("exportDialogParams", dialogParams);
+					break;
+				default:
+					log.error("Unknown exporter '"+exporter+"', skipping the job.");
+					return false;
+				}
+
+				final CommandModule m = ctx.getService(CommandService.class).run(command, true, params).get();
+				//NB: the exporters cancel themselves when they fail
+				if (m.isCanceled()) {
+					log.error("Exporter "+exporter+" failed: "+m.getCancelReason());
+					return false;
+				}
+
+				//the LineageExporter finishes its output asynchronously, see if it has succeeded
+				if (m.getCommand() instanceof LineageExporter) {
+					final CompletableFuture<Void> export = ((LineageExporter)m.getCommand()).getLastExport();
+					if (export == null) {
+						log.error("Exporter "+exporter+" has exported nothing.");
+						return false;
+					}
+					try {
+						export.join();
+					} catch (CompletionException | CancellationException e) {
+						log.error("Exporter "+exporter+" failed writing out: "
+								+(e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+						return false;
+					}
+				}
+				return true;
+			} finally {
+				//the exporters may be still writing out (and reading the project)
+				AsyncGraphExportable.awaitAllPending();
+				projectModel.close();
+			}
+		} catch (Exception e) {
+			log.error("Job with "+exporter+" failed: "+e.getMessage());
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	private static boolean replay(final Map<String,String> job, final Logger log)
+	throws IOException {
+		final String recording = job.get(KEY_RECORDING);
+		final String output = job.get(KEY_OUTPUT);
+		if (recording == null || output == null) {
+			log.error("Replay job needs both '"+KEY_RECORDING+"' and '"+KEY_OUTPUT+"' keys, skipping it.");
+			return false;
+		}
+
+		final BlenderSendingUtils.BlenderConnectionHandle conn
+				= BlenderSendingUtils.connectToBlender(output, job.getOrDefault("clientName", "replay"));
+		try {
+			conn.sendInitialIntroHandshake();
+			final long cnt = GraphicsRecorder.replay(new File(recording), conn.commContinuous);
+			log.info("Replayed "+cnt+" batches from "+recording+" into "+output);
+		} finally {
+			conn.closeConnection();
+		}
+		return true;
+	}
+}
@@ -28,15 +28,20 @@
  */
 package cz.it4i.ulman.transfers;
 
+import cz.it4i.ulman.transfers.graphics.GraphicsRecorder;
 import cz.it4i.ulman.transfers.graphics.protocol.BucketsWithGraphics;
 import cz.it4i.ulman.transfers.graphics.protocol.ClientToServerGrpc;
 import io.grpc.ConnectivityState;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 public class BlenderSendingUtils {
@@ -87,6 +92,7 @@ public class BlenderSendingUtils {
 		}
 
 		public void closeConnection() {
+			if (isConnectionClosed) return;
 			SINGLETON.deregisterChannelUsage(url);
 			isConnectionClosed = true;
 		}
@@ -102,7 +108,20 @@ public class BlenderSendingUtils {
 		return new BlenderConnectionHandle(url,clientName, SINGLETON.registerChannelUsage(url));
 	}
 
-	static void closeChannel(final ManagedChannel channel)
+	/** creates a new channel to the given url, which is either the hostname:port of a listening
+	 *  Blender, or "file:" followed by a path of a file to record the graphics into */
+	static public ManagedChannel buildChannel(final String url) {
+		if (GraphicsRecorder.isRecordingUrl(url)) {
+			try {
+				return GraphicsRecorder.channelFor(url);
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot start recording into "+url+": "+e.getMessage(), e);
+			}
+		}
+		return ManagedChannelBuilder.forTarget(url).usePlaintext().build();
+	}
+
+	static public void closeChannel(final ManagedChannel channel)
 	throws InterruptedException {
 		closeChannel(channel, 15, 2);
 	}
@@ -137,49 +156,106 @@ public class BlenderSendingUtils {
 	//internal data of the singleton
 	private final Map<String, ManagedChannel> openedChannels = new HashMap<>(5);
 	private final Map<String, Integer> noOfOpenedChannelsUsers = new HashMap<>(5);
+	private final Map<String, ScheduledFuture<?>> scheduledClosings = new HashMap<>(5);
+
+	/** how long a channel that nobody uses is kept open (and warm) for the next user,
+	 *  after which it is shut down */
+	public static final int IDLE_CHANNEL_TIMEOUT_SECONDS = 60;
+
+	private static final ScheduledExecutorService idleChannelsCloser
+			= Executors.newSingleThreadScheduledExecutor(r -> {
+				final Thread t = new Thread(r, "Blender idle channels closer");
+				t.setDaemon(true);
+				return t;
+			});
 
 	/** increases usage counter; and if the first use of it is detected,
 	 * the channel gets created and connected */
-	private ManagedChannel registerChannelUsage(final String url) {
+	private synchronized ManagedChannel registerChannelUsage(final String url) {
+		final ScheduledFuture<?> closing = scheduledClosings.remove(url);
+		if (closing != null) closing.cancel(false);
 		if (!openedChannels.containsKey(url)) {
-			openedChannels.put(url, ManagedChannelBuilder.forTarget(url).usePlaintext().build());
+			openedChannels.put(url, buildChannel(url));
 		}
 		noOfOpenedChannelsUsers.put(url, noOfOpenedChannelsUsers.getOrDefault(url, 0)+1);
 		return openedChannels.get(url);
 	}
 
 	/** decreases usage counter; and if it drops to zero afterwards,
-	 * the underlying channel is still kept alive */
-	private void deregisterChannelUsage(final String url) {
+	 * the underlying channel is shut down unless it gets used again
+	 * within the IDLE_CHANNEL_TIMEOUT_SECONDS */
+	private synchronized void deregisterChannelUsage(final String url) {
 		if (noOfOpenedChannelsUsers.getOrDefault(url,0) == 0) return;
-		noOfOpenedChannelsUsers.put(url, noOfOpenedChannelsUsers.get(url)-1);
+		final int users = noOfOpenedChannelsUsers.get(url)-1;
+		noOfOpenedChannelsUsers.put(url, users);
+		if (users == 0) scheduledClosings.put(url, idleChannelsCloser.schedule(
+				() -> closeIfStillNotNeeded(url), IDLE_CHANNEL_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+	}
+
+	/** the scheduled part of the deregisterChannelUsage() */
+	private void closeIfStillNotNeeded(final String url) {
+		final ManagedChannel channel;
+		synchronized (this) {
+			scheduledClosings.remove(url);
+			if (noOfOpenedChannelsUsers.getOrDefault(url,0) > 0) return; //used again meanwhile
+			noOfOpenedChannelsUsers.remove(url);
+			channel = openedChannels.remove(url);
+		}
+		if (channel == null) return;
+		try {
+			shutdownChannel(url, channel);
+		} catch (InterruptedException e) {
+			channel.shutdownNow();
+		}
+	}
+
+	private static void shutdownChannel(final String url, final ManagedChannel channel)
+	throws InterruptedException {
+		//in-process channels to recorders need no grace time
+		if (GraphicsRecorder.isRecordingUrl(url))
+			channel.shutdown().awaitTermination(10, TimeUnit.SECONDS);
+		else closeChannel(channel);
 	}
 
 	public static String reportConnections() {
 		final StringBuilder sb = new StringBuilder("Known connections:");
-		for (String url : SINGLETON.openedChannels.keySet())
-			sb.append("\n  url "+url+" is currently used "+SINGLETON.noOfOpenedChannelsUsers.get(url)+" times");
+		synchronized (SINGLETON) {
+			for (String url : SINGLETON.openedChannels.keySet())
+				sb.append("\n  url "+url+" is currently used "+SINGLETON.noOfOpenedChannelsUsers.get(url)+" times");
+		}
 		return sb.toString();
 	}
 
 	/** find not-used channels (counter equals to zero), close them and remove them the management */
 	public static void closeNotNeededConnections()
 	throws InterruptedException {
-		final Iterator<String> urls = SINGLETON.openedChannels.keySet().iterator();
-		while (urls.hasNext()) {
-			String url = urls.next();
-			if (SINGLETON.noOfOpenedChannelsUsers.get(url) == 0) {
-				closeChannel(SINGLETON.openedChannels.get(url));
-				SINGLETON.noOfOpenedChannelsUsers.remove(url);
-				urls.remove(); //essentially the same as SINGLETON.openedChannels.remove(url);
+		//NB: the channels are taken out of the management first, and closed (which may take
+		//    a while) afterwards so that other channels can be (de)registered meanwhile
+		final Map<String, ManagedChannel> notNeededChannels = new HashMap<>(5);
+		synchronized (SINGLETON) {
+			final Iterator<String> urls = SINGLETON.openedChannels.keySet().iterator();
+			while (urls.hasNext()) {
+				String url = urls.next();
+				if (SINGLETON.noOfOpenedChannelsUsers.get(url) == 0) {
+					notNeededChannels.put(url, SINGLETON.openedChannels.get(url));
+					SINGLETON.noOfOpenedChannelsUsers.remove(url);
+					final ScheduledFuture<?> closing = SINGLETON.scheduledClosings.remove(url);
+					if (closing != null) closing.cancel(false);
+					urls.remove(); //essentially the same as SINGLETON.openedChannels.remove(url);
+				}
 			}
 		}
+
+		for (Map.Entry<String, ManagedChannel> c : notNeededChannels.entrySet())
+			shutdownChannel(c.getKey(), c.getValue());
 	}
 
 	@Override
 	protected void finalize() {
 		//"nullify" all channels so that they could get closed
-		noOfOpenedChannelsUsers.replaceAll((url, cnt) -> 0);
+		synchronized (this) {
+			noOfOpenedChannelsUsers.replaceAll((url, cnt) -> 0);
+		}
 		try {
 			closeNotNeededConnections();
 		}
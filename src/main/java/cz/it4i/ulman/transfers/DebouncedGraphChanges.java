@@ -0,0 +1,110 @@
+/*-
+ * #%L
+ * Online Mastodon Exports
+ * %%
+ * Copyright (C) 2021 - 2024 Vladimír Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cz.it4i.ulman.transfers;
+
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.spatial.VertexPositionListener;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/** Listens to the changes of the lineage and coalesces them: the given action is executed
+ *  only once no change has come for DEBOUNCE_MS. The action is executed in own thread,
+ *  the executions never overlap, and the action should take the graph's read lock itself. */
+class DebouncedGraphChanges implements GraphListener<Spot, Link>, VertexPositionListener<Spot> {
+	/** the quiet period after the last change */
+	public static final long DEBOUNCE_MS = 500;
+
+	private final ModelGraph graph;
+	private final Runnable action;
+
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+		final Thread t = new Thread(r, "Lineage changes debouncer");
+		t.setDaemon(true);
+		return t;
+	});
+	private ScheduledFuture<?> pendingAction = null;
+
+	DebouncedGraphChanges(final ModelGraph graph, final Runnable action) {
+		this.graph = graph;
+		this.action = action;
+		graph.addGraphListener(this);
+		graph.addVertexPositionListener(this);
+	}
+
+	/** stops listening, the action that is already running is finished though */
+	synchronized void stop() {
+		graph.removeGraphListener(this);
+		graph.removeVertexPositionListener(this);
+		if (pendingAction != null) pendingAction.cancel(false);
+		timer.shutdown();
+	}
+
+	private synchronized void changed() {
+		if (timer.isShutdown()) return;
+		if (pendingAction != null) pendingAction.cancel(false);
+		pendingAction = timer.schedule(action, DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+	}
+
+	// --------------------- listeners ---------------------
+	@Override
+	public void graphRebuilt() {
+		changed();
+	}
+
+	@Override
+	public void vertexAdded(final Spot vertex) {
+		changed();
+	}
+
+	@Override
+	public void vertexRemoved(final Spot vertex) {
+		changed();
+	}
+
+	@Override
+	public void edgeAdded(final Link edge) {
+		changed();
+	}
+
+	@Override
+	public void edgeRemoved(final Link edge) {
+		changed();
+	}
+
+	@Override
+	public void vertexPositionChanged(final Spot vertex) {
+		changed();
+	}
+}
@@ -28,19 +28,27 @@
  */
 package cz.it4i.ulman.transfers;
 
+import cz.it4i.ulman.transfers.graphexport.Utils;
 import cz.it4i.ulman.transfers.graphics.EmptyIgnoringStreamObservers;
 import cz.it4i.ulman.transfers.graphics.protocol.BucketsWithGraphics;
+import cz.it4i.ulman.transfers.indices.RootsIndex;
+import cz.it4i.ulman.transfers.indices.TrackSegmentsIndex;
 import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
+import org.mastodon.collection.RefList;
+import org.mastodon.collection.ref.RefArrayList;
 import org.mastodon.mamut.ProjectModel;
 import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
 import org.mastodon.mamut.tomancak.util.SpotsIterator;
 
 import org.mastodon.model.tag.TagSetStructure;
+import org.mastodon.spatial.SpatioTemporalIndex;
 import org.mastodon.ui.coloring.FixedColorGenerator;
 import org.mastodon.ui.coloring.GraphColorGenerator;
 import org.mastodon.ui.coloring.TagSetGraphColorGenerator;
+import org.scijava.app.StatusService;
 import org.scijava.command.Command;
 import org.scijava.command.DynamicCommand;
 import org.scijava.log.LogService;
@@ -48,11 +56,19 @@ import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
-import java.util.function.Function;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 
 
 @Plugin( type = Command.class, name = "Display full time-lapse of the lineage in Blender" )
@@ -105,33 +121,88 @@ public class FullLineageToBlender extends DynamicCommand {
 	@Parameter(label = "Line segments length in time points:", min = "1", stepSize = "1")
 	private int lineTimeSpan = 10;
 
+	@Parameter(label = "Export from time point (negative = the first one):", stepSize = "1")
+	private int timeFrom = -1;
+	@Parameter(label = "Export till time point (negative = the last one):", stepSize = "1")
+	private int timeTill = -1;
+	@Parameter(label = "Export every n-th time point:", min = "1", stepSize = "1")
+	private int timeStride = 1;
+
 	@Parameter(label = "EXPERIMENTAL: Displace lineages eccentrically by this amount:")
 	private float eccentricOffsetSize = 0.f;
 
+	//NB: the time window (and every n-th time point) is exported time point after time point, never in parallel
+	@Parameter(label = "Process lineage trees in parallel (not with a time window or every n-th time point):")
+	private boolean doParallel = true;
+	@Parameter(label = "Parallel: send lineage trees in the original order:")
+	private boolean doDeterministicOrder = true;
+
 	@Parameter
 	private LogService logService;
 
+	@Parameter
+	private StatusService statusService;
+
+	//shared (read-only) setup of the current export
+	private boolean areSphereSizesScaled;
+	private boolean dontEverChangeBuilderNode;
+	private boolean doIndividualTracks;
+	private GraphColorGenerator<Spot, Link> colorizer;
+	private BlenderSendingUtils.BlenderConnectionHandle conn;
+	private RefList<Spot> roots;
+	private TrackSegmentsIndex tracksIndex;
+	private ProgressReporter progress;
+
+	//<time window>
+	private int windowFrom, windowTill, windowStride;
+	/** tree ID (of the tracksIndex) -> index of its root in the 'roots', or -1 */
+	private int[] rootIdxOfTree = null;
+	//</time window>
+
+	//<eccentricity>
+	private int minTP, noOfTPs;
+	/** root index -> dense table of the lineage's eccentric shifts, the table
+	 *  stores x,y,z,cnt at the offset 4*(tp-lineageFirstTP[root index]) and spans
+	 *  only the time points of the lineage, or null if not used */
+	private float[][] lineageShifts = null;
+	/** root index -> the time point of the first entry in the lineage's table */
+	private int[] lineageFirstTP = null;
+	//</eccentricity>
+
 	@Override
 	public void run() {
 		//init the communication side
-		final boolean areSphereSizesScaled = scaleMode.startsWith("scaled");
+		areSphereSizesScaled = scaleMode.startsWith("scaled");
+		final ModelGraph graph = projectModel.getModel().getGraph();
+		boolean isGraphLocked = false;
+
+		//every thread gets its own worker (with own builders and refs)
+		final List<LineageWorker> allWorkers = Collections.synchronizedList(new ArrayList<>());
+		final ThreadLocal<LineageWorker> workers = ThreadLocal.withInitial(() -> {
+			final LineageWorker w = new LineageWorker(doParallel || !dontEverChangeBuilderNode);
+			allWorkers.add(w);
+			return w;
+		});
+		final ForkJoinPool pool = doParallel ? new ForkJoinPool(Runtime.getRuntime().availableProcessors()) : null;
+
+		//the batches are sent from own thread so that the graph is not locked while waiting for the network
+		final ExecutorService sendingThread = Executors.newSingleThreadExecutor(r -> {
+			final Thread t = new Thread(r, "Blender sender of " + dataName);
+			t.setDaemon(true);
+			return t;
+		});
+		final AtomicReference<Throwable> sendingFailure = new AtomicReference<>();
+
 		try {
-			final BlenderSendingUtils.BlenderConnectionHandle conn
-					= BlenderSendingUtils.connectToBlender(connectURL, clientName);
+			conn = BlenderSendingUtils.connectToBlender(connectURL, clientName);
 			conn.sendInitialIntroHandshake();
 
 			//now keep pushing data away to the channel
 			final StreamObserver<BucketsWithGraphics.BatchOfGraphics> dataSender
 					= conn.commContinuous.replaceGraphics(new EmptyIgnoringStreamObservers());
 
-			final BucketsWithGraphics.Vector3D.Builder vBuilder
-					= BucketsWithGraphics.Vector3D.newBuilder();
-			final BucketsWithGraphics.SphereParameters.Builder sBuilder
-					= BucketsWithGraphics.SphereParameters.newBuilder();
-			final BucketsWithGraphics.LineParameters.Builder lBuilder
-					= BucketsWithGraphics.LineParameters.newBuilder();
-			final BucketsWithGraphics.TimeSpan.Builder tSpanBuilder
-					= BucketsWithGraphics.TimeSpan.newBuilder();
+			graph.getLock().readLock().lock();
+			isGraphLocked = true;
 
 			//<colors>
 			Optional<TagSetStructure.TagSet> ts = projectModel.getModel()
@@ -141,179 +212,547 @@ public class FullLineageToBlender extends DynamicCommand {
 					.stream()
 					.filter(_ts -> _ts.getName().equals(colorScheme))
 					.findFirst();
-			final GraphColorGenerator<Spot, Link> colorizer
-					= ts.isPresent() ? new TagSetGraphColorGenerator<>(
+			colorizer = ts.isPresent() ? new TagSetGraphColorGenerator<>(
 						projectModel.getModel().getTagSetModel(), ts.get())
 					: new FixedColorGenerator(255,255,255);
 			//</colors>
 
-			final SpotsIterator visitor = new SpotsIterator(projectModel,
-					logService.subLogger("export of " + dataName));
+			dontEverChangeBuilderNode = chunkingLevel.equals(GRP_LEVEL_FULL);
+			doIndividualTracks = chunkingLevel.equals(GRP_LEVEL_TRACK);
+
+			//<time window>
+			minTP = projectModel.getMinTimepoint();
+			noOfTPs = projectModel.getMaxTimepoint() - minTP + 1;
+			windowFrom = timeFrom < 0 ? minTP : Math.max(timeFrom, minTP);
+			windowTill = timeTill < 0 ? minTP+noOfTPs-1 : Math.min(timeTill, minTP+noOfTPs-1);
+			windowStride = Math.max(timeStride, 1);
+			final boolean isWindowed = windowFrom > minTP || windowTill < minTP+noOfTPs-1 || windowStride > 1;
+			//</time window>
 
-			//NB: this is a hack to be able to share the nodeBuilder among lambdas
-			final BucketsWithGraphics.BatchOfGraphics.Builder[] nodeBuilder = { null };
-			final Spot motherSpotRef = projectModel.getModel().getGraph().vertexRef();
-			final boolean dontEverChangeBuilderNode = chunkingLevel.equals(GRP_LEVEL_FULL);
-			final boolean doIndividualTracks = chunkingLevel.equals(GRP_LEVEL_TRACK);
 			logService.info("Uploading plan: dontEverChangeBuilderNode = " + dontEverChangeBuilderNode
-					+ ", doIndividualTracks = " + doIndividualTracks);
+					+ ", doIndividualTracks = " + doIndividualTracks
+					+ ", doParallel = " + (doParallel && !isWindowed)
+					+ (isWindowed ? ", time points " + windowFrom + ".." + windowTill + " step " + windowStride : ""));
+			if (doParallel && isWindowed)
+				logService.info("The time points of the window are exported sequentially, not in parallel.");
+
+			final RootsIndex rootsIndex = RootsIndex.getFor(projectModel);
+			rootsIndex.ensureUpToDate();
+			roots = new RefArrayList<>(graph.vertices().getRefPool(), rootsIndex.getNoOfRoots());
+			rootsIndex.forEachRoot(workers.get().rootRef, roots::add);
+
+			if (doIndividualTracks || isWindowed) {
+				tracksIndex = TrackSegmentsIndex.getFor(projectModel);
+				tracksIndex.ensureUpToDate();
+			}
+			if (isWindowed) {
+				rootIdxOfTree = new int[tracksIndex.getNoOfTracks()];
+				Arrays.fill(rootIdxOfTree, -1);
+				for (int i = 0; i < roots.size(); ++i)
+					rootIdxOfTree[ tracksIndex.getTreeID(roots.get(i, workers.get().rootRef)) ] = i;
+			}
 
-			//<eccentricity>
-			final int minTP = projectModel.getMinTimepoint();
-			//tp -> geom. centre over all spots in that tp
-			final Map<Integer, float[]> globalCentre = new HashMap<>(projectModel.getMaxTimepoint()-minTP+1);
-			final float[] currPos = new float[3]; //aux variable
+			lineageShifts = null;
 			if (eccentricOffsetSize > 0) {
-				//determine cell centres for each time point
-				for (int tp = minTP; tp <= projectModel.getMaxTimepoint(); ++tp) {
-					globalCentre.put(tp, new float[] {0,0,0});
-					float[] cs = globalCentre.get(tp);
-					long cnt = 0;
-					for (Spot s : projectModel.getModel().getSpatioTemporalIndex().getSpatialIndex(tp)) {
-						s.localize(currPos);
-						cs[0] += currPos[0];
-						cs[1] += currPos[1];
-						cs[2] += currPos[2];
-						++cnt;
-					}
-					if (cnt > 0) {
-						cs[0] /= cnt;
-						cs[1] /= cnt;
-						cs[2] /= cnt;
+				if (isWindowed) computeEccentricShiftsInWindow();
+				else computeEccentricShifts(pool, workers);
+			}
+
+			long expectedSpots = 0;
+			if (isWindowed) {
+				final SpatioTemporalIndex<Spot> stIndex = projectModel.getModel().getSpatioTemporalIndex();
+				for (int tp = windowFrom; tp <= windowTill; tp += windowStride)
+					expectedSpots += stIndex.getSpatialIndex(tp).size();
+			} else expectedSpots = graph.vertices().size();
+			progress = new ProgressReporter(statusService, logService.subLogger("export of " + dataName),
+					"Export of " + dataName, expectedSpots);
+			final Consumer<BucketsWithGraphics.BatchOfGraphics> countingSender = batch ->
+				sendingThread.execute(() -> {
+					if (sendingFailure.get() != null) return; //don't send anything after a failure
+					try {
+						progress.addBytes(batch.getSerializedSize());
+						dataSender.onNext(batch);
+					} catch (Throwable t) {
+						sendingFailure.compareAndSet(null, t);
 					}
+				});
+
+			if (isWindowed) workers.get().exportWindow(countingSender);
+			else if (doParallel) exportInParallel(pool, workers, countingSender);
+			else forEachRoot(null, workers, (w,rootIdx,root) -> w.exportLineage(rootIdx, root, countingSender));
+
+			//all is prepared, only the sending remains
+			graph.getLock().readLock().unlock();
+			isGraphLocked = false;
+			sendingThread.shutdown();
+			while (!sendingThread.awaitTermination(1, TimeUnit.SECONDS)) { /* keep waiting */ }
+			final Throwable failure = sendingFailure.get();
+			if (failure instanceof RuntimeException) throw (RuntimeException)failure;
+			if (failure != null) throw new IllegalStateException(failure.getMessage(), failure);
+
+			dataSender.onCompleted();
+			progress.done();
+
+			conn.closeConnection();
+		}
+		catch (StatusRuntimeException e) {
+			logService.error("Mastodon network sender: GRPC: " + e.getMessage());
+			cancel("GRPC: " + e.getMessage());
+		} catch (Exception e) {
+			logService.error("Mastodon network sender: Error: " + e.getMessage());
+			e.printStackTrace();
+			cancel("Error: " + e.getMessage());
+		} finally {
+			sendingThread.shutdownNow();
+			if (pool != null) pool.shutdown();
+			allWorkers.forEach(LineageWorker::releaseRefs);
+			lineageShifts = null;
+			lineageFirstTP = null;
+			rootIdxOfTree = null;
+			if (isGraphLocked) graph.getLock().readLock().unlock();
+		}
+	}
+
+	/** what to do with one lineage (given by its root and root's index) using the given worker */
+	interface RootAction {
+		void accept(LineageWorker worker, int rootIdx, Spot root);
+	}
+
+	/** runs the action on all roots, either on the given pool (and waits for it),
+	 *  or sequentially in the caller thread if no pool is given */
+	private void forEachRoot(final ForkJoinPool pool,
+	                         final ThreadLocal<LineageWorker> workers,
+	                         final RootAction action) {
+		if (roots.isEmpty()) return;
+		if (pool != null) {
+			pool.invoke(new LineagesTask(roots, 0, roots.size(), workers, action));
+		} else {
+			final LineageWorker worker = workers.get();
+			for (int i = 0; i < roots.size(); ++i)
+				action.accept(worker, i, roots.get(i, worker.rootRef));
+		}
+	}
+
+	/** one (parallel) pass over all spots of all lineages fills the per-lineage tables,
+	 *  which are afterwards turned into the eccentric shift vectors; the centres of all
+	 *  spots are summed up directly from the spatio-temporal index because the lineages
+	 *  traversal visits a spot that merges tracks more than once */
+	private void computeEccentricShifts(final ForkJoinPool pool,
+	                                    final ThreadLocal<LineageWorker> workers) {
+		lineageShifts = new float[roots.size()][];
+		lineageFirstTP = new int[roots.size()];
+
+		forEachRoot(pool, workers, LineageWorker::accumulateLineageCentres);
+
+		//tp -> geom. centre over all spots in that tp, every tp has its own part of the table
+		final double[] globalSums = new double[4*noOfTPs];
+		final SpatioTemporalIndex<Spot> stIndex = projectModel.getModel().getSpatioTemporalIndex();
+		IntStream tps = IntStream.range(0, noOfTPs);
+		if (doParallel) tps = tps.parallel();
+		tps.forEach(t -> {
+			final float[] pos = new float[3];
+			final int o = 4*t;
+			for (Spot spot : stIndex.getSpatialIndex(minTP+t)) {
+				spot.localize(pos);
+				globalSums[o  ] += pos[0];
+				globalSums[o+1] += pos[1];
+				globalSums[o+2] += pos[2];
+				globalSums[o+3] += 1;
+			}
+		});
+		finishEccentricShifts(globalSums);
+	}
+
+	/** the same as computeEccentricShifts() but only the spots from the time points of
+	 *  the export window are considered, which are found directly via the spatio-temporal
+	 *  index instead of traversing the lineages */
+	private void computeEccentricShiftsInWindow() {
+		lineageShifts = new float[roots.size()][];
+		lineageFirstTP = new int[roots.size()];
+		final double[] globalSums = new double[4*noOfTPs];
+		final float[] pos = new float[3];
+
+		final SpatioTemporalIndex<Spot> stIndex = projectModel.getModel().getSpatioTemporalIndex();
+		for (int tp = windowFrom; tp <= windowTill; tp += windowStride) {
+			final int o = 4*(tp-minTP);
+			for (Spot spot : stIndex.getSpatialIndex(tp)) {
+				final int rootIdx = rootIdxOfTree[ tracksIndex.getTreeID(spot) ];
+				if (rootIdx == -1) continue;
+				//the time points are visited in the increasing order, the first one starts the table
+				if (lineageShifts[rootIdx] == null) {
+					lineageShifts[rootIdx] = new float[4*INITIAL_LINEAGE_SPAN];
+					lineageFirstTP[rootIdx] = tp;
 				}
+				final float[] sums = lineageShifts[rootIdx] = ensureLineageSpan(lineageShifts[rootIdx], tp-lineageFirstTP[rootIdx]);
+				final int lo = 4*(tp-lineageFirstTP[rootIdx]);
+
+				spot.localize(pos);
+				sums[lo  ] += pos[0];
+				sums[lo+1] += pos[1];
+				sums[lo+2] += pos[2];
+				sums[lo+3] += 1;
+				globalSums[o  ] += pos[0];
+				globalSums[o+1] += pos[1];
+				globalSums[o+2] += pos[2];
+				globalSums[o+3] += 1;
 			}
+		}
+		finishEccentricShifts(globalSums);
+	}
+
+	/** how many time points a lineage's table holds before it needs to grow */
+	static final int INITIAL_LINEAGE_SPAN = 16;
+
+	/** returns the 'table', or its enlarged copy, that can hold the entry of the
+	 *  given time point (relative to the table's first time point) */
+	static float[] ensureLineageSpan(final float[] table, final int relativeTP) {
+		if (4*relativeTP < table.length) return table;
+		return Arrays.copyOf(table, Math.max(2*table.length, 4*(relativeTP+1)));
+	}
+
+	/** turns the per-lineage sums of positions into the eccentric shift vectors,
+	 *  the 'globalSums' are the sums over all spots, at the offset 4*(tp-minTP) */
+	private void finishEccentricShifts(final double[] globalSums) {
+		final float[] globalCentre = new float[3*noOfTPs];
+		for (int t = 0; t < noOfTPs; ++t) {
+			final double cnt = globalSums[4*t+3];
+			if (cnt == 0) continue;
+			globalCentre[3*t  ] = (float)(globalSums[4*t  ] / cnt);
+			globalCentre[3*t+1] = (float)(globalSums[4*t+1] / cnt);
+			globalCentre[3*t+2] = (float)(globalSums[4*t+2] / cnt);
+		}
 
-			final float[] defaultZeroPos = new float[] {0,0,0};
-			final Function<Integer,float[]> commonZeroPosInitializer = (key) -> new float[]{0,0,0, 0}; //x,y,z, cnt
-			//</eccentricity>
-
-			visitor.visitRootsFromEntireGraph( root -> {
-				//shall we init? if not, can we still re-init?
-				if (nodeBuilder[0] == null || !dontEverChangeBuilderNode) {
-					//System.out.println("changing node at root level");
-					nodeBuilder[0] = BucketsWithGraphics.BatchOfGraphics.newBuilder()
-							.setClientID(conn.clientIdObj)
-							.setCollectionName(dataName)
-							.setDataName( dontEverChangeBuilderNode ? "Full lineage" : root.getLabel() )
-							.setDataID(root.getInternalPoolIndex());
+		//turn the per-lineage sums into "eccentric shift vectors"
+		IntStream range = IntStream.range(0, lineageShifts.length);
+		if (doParallel) range = range.parallel();
+		range.forEach(i -> {
+			final float[] pos = lineageShifts[i];
+			if (pos == null) return; //lineage not present in the export at all
+			final int tOffset = lineageFirstTP[i] - minTP;
+			for (int o = 0; o < pos.length; o += 4) {
+				if (pos[o+3] == 0) continue; //lineage not present in this tp, zero shift then
+				final int t = tOffset + o/4;
+
+				//finish the calculation of the avg. coord (aka centre), and relate it to the global centre
+				pos[o  ] = pos[o  ] / pos[o+3] - globalCentre[3*t  ];
+				pos[o+1] = pos[o+1] / pos[o+3] - globalCentre[3*t+1];
+				pos[o+2] = pos[o+2] / pos[o+3] - globalCentre[3*t+2];
+
+				//resize it as desired
+				final float len = (float)Math.sqrt(pos[o]*pos[o] + pos[o+1]*pos[o+1] + pos[o+2]*pos[o+2]);
+				final float scale = len > 0 ? eccentricOffsetSize / len : 0;
+				pos[o  ] *= scale;
+				pos[o+1] *= scale;
+				pos[o+2] *= scale;
+			}
+		});
+	}
+
+	/** the lineages are processed independently on the pool, and the resulting
+	 *  batches are sent either in the order of the roots or as soon as they are ready */
+	private void exportInParallel(final ForkJoinPool pool,
+	                              final ThreadLocal<LineageWorker> workers,
+	                              final Consumer<BucketsWithGraphics.BatchOfGraphics> dataSender)
+	throws Exception {
+		if (roots.isEmpty()) return;
+
+		//where the batches of the individual lineages end up
+		final Consumer<BucketsWithGraphics.BatchOfGraphics> sendOut;
+		final BucketsWithGraphics.BatchOfGraphics.Builder fullLineageBuilder;
+		if (dontEverChangeBuilderNode) {
+			//all lineages are merged into one Blender node that is sent only at the very end
+			final Spot firstRoot = roots.createRef();
+			fullLineageBuilder = BucketsWithGraphics.BatchOfGraphics.newBuilder()
+					.setClientID(conn.clientIdObj)
+					.setCollectionName(dataName)
+					.setDataName("Full lineage")
+					.setDataID(roots.get(0, firstRoot).getInternalPoolIndex());
+			roots.releaseRef(firstRoot);
+			sendOut = batch -> {
+				synchronized (fullLineageBuilder) {
+					fullLineageBuilder.addAllSpheres(batch.getSpheresList())
+							.addAllLines(batch.getLinesList());
 				}
+			};
+		} else {
+			fullLineageBuilder = null;
+			sendOut = batch -> {
+				synchronized (dataSender) {
+					dataSender.accept(batch);
+				}
+			};
+		}
 
-				//<eccentricity>
-				final Map<Integer, float[]> lineageOffset = new HashMap<>(projectModel.getMaxTimepoint()-minTP+1);
-				if (eccentricOffsetSize > 0) {
-					//before the "normal scanning and drawing of this lineage",
-					//first determine this lineage centres for every time point
-					visitor.visitDownstreamSpots(root, spot -> {
-						float[] cs = lineageOffset.computeIfAbsent(spot.getTimepoint(), commonZeroPosInitializer);
-						spot.localize(currPos);
-						cs[0] += currPos[0];
-						cs[1] += currPos[1];
-						cs[2] += currPos[2];
-						cs[3] += 1;
-					});
-
-					//finish the centre calculation, convert the map to a "shifts provider"
-					lineageOffset.forEach((k,pos) -> {
-						//finish the calculation of the avg. coord (aka centre)
-						pos[0] /= pos[3];
-						pos[1] /= pos[3];
-						pos[2] /= pos[3];
-
-						//turn it into an "eccentric shift vector"
-						float[] c = globalCentre.getOrDefault(k, defaultZeroPos); //"default param" should never happen! ...just in case
-						pos[0] -= c[0];
-						pos[1] -= c[1];
-						pos[2] -= c[2];
-
-						//resize it as desired
-						final float scale = eccentricOffsetSize / (float)Math.sqrt(pos[0]*pos[0] + pos[1]*pos[1] + pos[2]*pos[2]);
-						pos[0] *= scale;
-						pos[1] *= scale;
-						pos[2] *= scale;
-					});
+		if (doDeterministicOrder) {
+			final List<CompletableFuture<List<BucketsWithGraphics.BatchOfGraphics>>> results
+					= new ArrayList<>(roots.size());
+			for (int i = 0; i < roots.size(); ++i) results.add(new CompletableFuture<>());
+
+			pool.execute(new LineagesTask(roots, 0, roots.size(), workers, (w, rootIdx, root) -> {
+				final List<BucketsWithGraphics.BatchOfGraphics> collected = new ArrayList<>(4);
+				try {
+					w.exportLineage(rootIdx, root, collected::add);
+					results.get(rootIdx).complete(collected);
+				} catch (Throwable t) {
+					results.get(rootIdx).completeExceptionally(t);
 				}
-				//</eccentricity>
-
-				visitor.visitDownstreamSpots(root, spot -> {
-					//am I the very first spot of a new track? (and should we care?)
-					//which breaks into:
-					//  - advance one up unless there's a mother
-					//  - if we haven't advanced, we're beginning of some track
-					if (doLines || doIndividualTracks) {
-						visitor.findUpstreamSpot(spot, motherSpotRef, 1);
+			}));
+
+			//the caller thread streams the finished lineages in the order of their roots
+			for (CompletableFuture<List<BucketsWithGraphics.BatchOfGraphics>> r : results)
+				r.get().forEach(sendOut);
+		} else {
+			pool.invoke(new LineagesTask(roots, 0, roots.size(), workers,
+					(w, rootIdx, root) -> w.exportLineage(rootIdx, root, sendOut)));
+		}
+
+		if (fullLineageBuilder != null) dataSender.accept( fullLineageBuilder.build() );
+	}
+
+	/** recursively halves the interval of roots until single roots are reached */
+	private static class LineagesTask extends RecursiveAction {
+		final RefList<Spot> roots;
+		final int from, till; //till is exclusive
+		final ThreadLocal<LineageWorker> workers;
+		final RootAction action;
+
+		LineagesTask(final RefList<Spot> roots, final int from, final int till,
+		             final ThreadLocal<LineageWorker> workers,
+		             final RootAction action) {
+			this.roots = roots;
+			this.from = from;
+			this.till = till;
+			this.workers = workers;
+			this.action = action;
+		}
+
+		@Override
+		protected void compute() {
+			if (till - from > 1) {
+				final int mid = (from + till) / 2;
+				invokeAll(new LineagesTask(roots, from, mid, workers, action),
+				          new LineagesTask(roots, mid, till, workers, action));
+				return;
+			}
+
+			final LineageWorker worker = workers.get();
+			action.accept(worker, from, roots.get(from, worker.rootRef));
+		}
+	}
+
+	/** Holds everything that is needed to process one lineage, including own
+	 *  protobuf builders and spot references, so that more workers can run
+	 *  concurrently. The lineages are, however, processed one by one within
+	 *  one worker. */
+	class LineageWorker {
+		final SpotsIterator visitor = new SpotsIterator(projectModel,
+				logService.subLogger("export of " + dataName));
+
+		final BucketsWithGraphics.Vector3D.Builder vBuilder
+				= BucketsWithGraphics.Vector3D.newBuilder();
+		final BucketsWithGraphics.SphereParameters.Builder sBuilder
+				= BucketsWithGraphics.SphereParameters.newBuilder();
+		final BucketsWithGraphics.LineParameters.Builder lBuilder
+				= BucketsWithGraphics.LineParameters.newBuilder();
+		final BucketsWithGraphics.TimeSpan.Builder tSpanBuilder
+				= BucketsWithGraphics.TimeSpan.newBuilder();
+
+		final Spot motherSpotRef = projectModel.getModel().getGraph().vertexRef();
+		final Spot rootRef = projectModel.getModel().getGraph().vertexRef();
+		final Spot ancestorRef = projectModel.getModel().getGraph().vertexRef();
+		final Link linkRef = projectModel.getModel().getGraph().edgeRef();
+		final float[] currPos = new float[3];
+
+		/** if false, the builder is created only once and it collects all lineages,
+		 *  and is (incrementally) sent after every lineage */
+		final boolean restartBuilderForEveryLineage;
+		BucketsWithGraphics.BatchOfGraphics.Builder nodeBuilder = null;
+
+		LineageWorker(final boolean restartBuilderForEveryLineage) {
+			this.restartBuilderForEveryLineage = restartBuilderForEveryLineage;
+		}
+
+		void releaseRefs() {
+			projectModel.getModel().getGraph().releaseRef( motherSpotRef );
+			projectModel.getModel().getGraph().releaseRef( rootRef );
+			projectModel.getModel().getGraph().releaseRef( ancestorRef );
+			projectModel.getModel().getGraph().releaseRef( linkRef );
+		}
+
+		/** the table of the lineage currently being accumulated */
+		float[] sums;
+
+		/** one pass over the lineage to sum up its spots positions per time point
+		 *  into its own table, which spans from the root's time point (the earliest
+		 *  in the lineage) to the last time point of the lineage */
+		void accumulateLineageCentres(final int rootIdx, final Spot root) {
+			final int firstTP = root.getTimepoint();
+			sums = new float[4*INITIAL_LINEAGE_SPAN];
+			visitor.visitDownstreamSpots(root, spot -> {
+				sums = ensureLineageSpan(sums, spot.getTimepoint()-firstTP);
+				final int o = 4*(spot.getTimepoint()-firstTP);
+				spot.localize(currPos);
+				sums[o  ] += currPos[0];
+				sums[o+1] += currPos[1];
+				sums[o+2] += currPos[2];
+				sums[o+3] += 1;
+			});
+			lineageFirstTP[rootIdx] = firstTP;
+			lineageShifts[rootIdx] = sums;
+			sums = null;
+		}
+
+		void exportLineage(final int rootIdx, final Spot root,
+		                   final Consumer<BucketsWithGraphics.BatchOfGraphics> dataSender) {
+			progress.addRoot();
+
+			//shall we init? if not, can we still re-init?
+			if (nodeBuilder == null || restartBuilderForEveryLineage) {
+				//System.out.println("changing node at root level");
+				nodeBuilder = BucketsWithGraphics.BatchOfGraphics.newBuilder()
+						.setClientID(conn.clientIdObj)
+						.setCollectionName(dataName)
+						.setDataName( dontEverChangeBuilderNode ? "Full lineage" : root.getLabel() )
+						.setDataID(root.getInternalPoolIndex());
+			}
+
+			visitor.visitDownstreamSpots(root, spot -> {
+				if (doLines) {
+					//advance one up unless there's no mother
+					visitor.findUpstreamSpot(spot, motherSpotRef, 1);
+				}
+				if (doLines && motherSpotRef.getInternalPoolIndex() != spot.getInternalPoolIndex()) {
+					addLine(spot, motherSpotRef, spot.getTimepoint()+0.5f +lineTimeSpan-1);
+				}
+				if (doIndividualTracks) {
+					//am I the very first spot of a new track (that is, right after a division)?
+					if (tracksIndex.isTrackStartAfterDivision(spot))
+					{
+						//beginning of a new track, yay!
+						//System.out.println("changing node at track level");
+						//finish the current bucket...
+						dataSender.accept( nodeBuilder.build() );
+
+						//...and start a new one
+						nodeBuilder = BucketsWithGraphics.BatchOfGraphics.newBuilder()
+								.setClientID(conn.clientIdObj)
+								.setCollectionName(dataName)
+								.setDataName(spot.getLabel())
+								.setDataID(spot.getInternalPoolIndex());
 					}
-					if (doLines && motherSpotRef.getInternalPoolIndex() != spot.getInternalPoolIndex()) {
-						//build a line
-						lBuilder.setStartPos( vBuilder
-								.setX(spot.getFloatPosition(0))
-								.setY(spot.getFloatPosition(1))
-								.setZ(spot.getFloatPosition(2)) );
-						lBuilder.setEndPos( vBuilder
-								.setX(motherSpotRef.getFloatPosition(0))
-								.setY(motherSpotRef.getFloatPosition(1))
-								.setZ(motherSpotRef.getFloatPosition(2)) );
-						//
-						final float spotTime = spot.getTimepoint();
-						lBuilder.setSpan( tSpanBuilder
-										.setTimeFrom(spotTime-0.5f)
-										.setTimeTill(spotTime+0.5f +lineTimeSpan-1)
-										.build() );
-						//
-						lBuilder.setRadius(lineWidth);
-						lBuilder.setColorXRGB( colorizer.color(spot) );
-						nodeBuilder[0].addLines(lBuilder);
+				}
+
+				addSphere(spot, rootIdx);
+			});
+			dataSender.accept( nodeBuilder.build() );
+		}
+
+		/** Exports only the spots from the time points of the export window, which are
+		 *  found directly via the spatio-temporal index (per time point) instead of
+		 *  traversing the lineages. The spots are grouped into Blender nodes according
+		 *  to the chunking level, the lines then bridge over the skipped time points. */
+		void exportWindow(final Consumer<BucketsWithGraphics.BatchOfGraphics> dataSender) {
+			//group key (0, tree ID or track ID) -> its Blender node
+			final BucketsWithGraphics.BatchOfGraphics.Builder[] groups
+					= new BucketsWithGraphics.BatchOfGraphics.Builder[ Math.max(tracksIndex.getNoOfTracks(),1) ];
+			//the keys in the order of their first appearance
+			final int[] usedKeys = new int[groups.length];
+			int noOfUsedKeys = 0;
+
+			//the lines stay displayed at least until the next exported time point
+			final int lineSpan = Math.max(lineTimeSpan, windowStride);
+
+			final SpatioTemporalIndex<Spot> stIndex = projectModel.getModel().getSpatioTemporalIndex();
+			for (int tp = windowFrom; tp <= windowTill; tp += windowStride) {
+				for (Spot spot : stIndex.getSpatialIndex(tp)) {
+					final int key = dontEverChangeBuilderNode ? 0
+							: (doIndividualTracks ? tracksIndex.getTrackID(spot) : tracksIndex.getTreeID(spot));
+					if (groups[key] == null) {
+						final Spot groupSpot = dontEverChangeBuilderNode ? spot
+								: (doIndividualTracks ? tracksIndex.getTrackStart(spot, rootRef)
+								                      : tracksIndex.getTreeRoot(spot, rootRef));
+						groups[key] = BucketsWithGraphics.BatchOfGraphics.newBuilder()
+								.setClientID(conn.clientIdObj)
+								.setCollectionName(dataName)
+								.setDataName( dontEverChangeBuilderNode ? "Full lineage" : groupSpot.getLabel() )
+								.setDataID(groupSpot.getInternalPoolIndex());
+						usedKeys[noOfUsedKeys++] = key;
 					}
-					if (doIndividualTracks) {
-						if (motherSpotRef.getInternalPoolIndex() != spot.getInternalPoolIndex()
-							&& visitor.countDescendants(motherSpotRef) > 1)
-						{
-							//beginning of a new track, yay!
-							logService.info("Found new beginning: "+spot.getLabel());
-							//System.out.println("changing node at track level");
-							//finish the current bucket...
-							dataSender.onNext( nodeBuilder[0].build() );
-
-							//...and start a new one
-							nodeBuilder[0] = BucketsWithGraphics.BatchOfGraphics.newBuilder()
-									.setClientID(conn.clientIdObj)
-									.setCollectionName(dataName)
-									.setDataName(spot.getLabel())
-									.setDataID(spot.getInternalPoolIndex());
-						}
+					nodeBuilder = groups[key];
+					if (tracksIndex.isTrackStart(spot) && tracksIndex.getTrackID(spot) == tracksIndex.getTreeID(spot))
+						progress.addRoot();
+
+					if (doLines && tp > windowFrom) {
+						final Spot ancestor = findAncestorNotAfter(spot, tp - windowStride);
+						if (ancestor != null && ancestor.getTimepoint() >= windowFrom)
+							addLine(spot, ancestor, tp+0.5f +lineSpan-1);
 					}
 
-					spot.localize(currPos);
-					float[] offset = lineageOffset.getOrDefault(spot.getTimepoint(), defaultZeroPos);
-					currPos[0] += offset[0];
-					currPos[1] += offset[1];
-					currPos[2] += offset[2];
-					sBuilder.setCentre( vBuilder
-							//updates the builder content and builds inside setCentre()
-							.setX(currPos[0]).setY(currPos[1]).setZ(currPos[2]) );
-					sBuilder.setTime(spot.getTimepoint());
-					//
-					float size = scaleSize;
-					if (areSphereSizesScaled) size *= (float)Math.sqrt(spot.getBoundingSphereRadiusSquared());
-					sBuilder.setRadius(size);
-					//
-					sBuilder.setColorXRGB( colorizer.color(spot) );
-					//logService.info("adding sphere at: "+sBuilder.getTime());
-					nodeBuilder[0].addSpheres(sBuilder);
-				});
-				dataSender.onNext( nodeBuilder[0].build() );
-			});
-			dataSender.onCompleted();
+					addSphere(spot, lineageShifts != null ? rootIdxOfTree[ tracksIndex.getTreeID(spot) ] : -1);
+				}
+			}
 
-			projectModel.getModel().getGraph().releaseRef( motherSpotRef );
+			for (int i = 0; i < noOfUsedKeys; ++i) dataSender.accept( groups[usedKeys[i]].build() );
+			nodeBuilder = null;
+		}
 
-			conn.closeConnection();
+		/** walks up the predecessors of the spot until a spot not later than the
+		 *  given time point is reached (returned in the 'ancestorRef'), or null if
+		 *  the lineage starts only after that time point */
+		Spot findAncestorNotAfter(final Spot spot, final int tp) {
+			Spot s = Utils.findPredecessor(spot, ancestorRef, linkRef);
+			while (s != null && s.getTimepoint() > tp) {
+				motherSpotRef.refTo(s);
+				s = Utils.findPredecessor(motherSpotRef, ancestorRef, linkRef);
+			}
+			return s;
 		}
-		catch (StatusRuntimeException e) {
-			logService.error("Mastodon network sender: GRPC: " + e.getMessage());
-		} catch (Exception e) {
-			logService.error("Mastodon network sender: Error: " + e.getMessage());
-			e.printStackTrace();
+
+		/** adds to the current node a line from the spot to the 'other' spot,
+		 *  displayed from the spot's time point till the given time */
+		void addLine(final Spot spot, final Spot other, final float timeTill) {
+			lBuilder.setStartPos( vBuilder
+					.setX(spot.getFloatPosition(0))
+					.setY(spot.getFloatPosition(1))
+					.setZ(spot.getFloatPosition(2)) );
+			lBuilder.setEndPos( vBuilder
+					.setX(other.getFloatPosition(0))
+					.setY(other.getFloatPosition(1))
+					.setZ(other.getFloatPosition(2)) );
+			//
+			lBuilder.setSpan( tSpanBuilder
+							.setTimeFrom(spot.getTimepoint()-0.5f)
+							.setTimeTill(timeTill)
+							.build() );
+			//
+			lBuilder.setRadius(lineWidth);
+			lBuilder.setColorXRGB( colorizer.color(spot) );
+			nodeBuilder.addLines(lBuilder);
+		}
+
+		/** adds to the current node a sphere for the spot, displaced by the (optional)
+		 *  eccentric shifts of its lineage, given with its root index or -1 for no shift */
+		void addSphere(final Spot spot, final int rootIdx) {
+			spot.localize(currPos);
+			final float[] shifts = lineageShifts != null && rootIdx != -1 ? lineageShifts[rootIdx] : null;
+			if (shifts != null) {
+				final int o = 4*(spot.getTimepoint()-lineageFirstTP[rootIdx]);
+				currPos[0] += shifts[o  ];
+				currPos[1] += shifts[o+1];
+				currPos[2] += shifts[o+2];
+			}
+			sBuilder.setCentre( vBuilder
+					//updates the builder content and builds inside setCentre()
+					.setX(currPos[0]).setY(currPos[1]).setZ(currPos[2]) );
+			sBuilder.setTime(spot.getTimepoint());
+			//
+			float size = scaleSize;
+			if (areSphereSizesScaled) size *= (float)Math.sqrt(spot.getBoundingSphereRadiusSquared());
+			sBuilder.setRadius(size);
+			//
+			sBuilder.setColorXRGB( colorizer.color(spot) );
+			nodeBuilder.addSpheres(sBuilder);
+			progress.addSpot();
 		}
 	}
 }
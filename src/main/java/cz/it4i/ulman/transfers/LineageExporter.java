@@ -28,21 +28,25 @@
  */
 package cz.it4i.ulman.transfers;
 
+import cz.it4i.ulman.transfers.graphexport.AsyncGraphExportable;
 import cz.it4i.ulman.transfers.graphexport.BlenderWriter;
 import cz.it4i.ulman.transfers.graphexport.GraphExportable;
+import cz.it4i.ulman.transfers.graphexport.GraphExportableV2;
+import cz.it4i.ulman.transfers.graphexport.GraphStreamViewer;
 import cz.it4i.ulman.transfers.graphexport.ui.util.SortersChooserDlg;
 import cz.it4i.ulman.transfers.graphexport.ui.GraphExportableFetcher;
 import cz.it4i.ulman.transfers.graphexport.ui.yEdGraphMLWriterDlg;
 import cz.it4i.ulman.transfers.graphexport.ui.GraphStreamViewerDlg;
 import cz.it4i.ulman.transfers.graphexport.ui.BlenderWriterDlg;
+import cz.it4i.ulman.transfers.graphexport.ui.BinaryLineageWriterDlg;
 import cz.it4i.ulman.transfers.graphexport.leftrightness.DescendantsSorter;
 import cz.it4i.ulman.transfers.graphexport.leftrightness.AbstractDescendantsSorter;
+import cz.it4i.ulman.transfers.indices.LineageLayout;
+import cz.it4i.ulman.transfers.indices.RootsIndex;
 
-import org.mastodon.collection.RefList;
-import org.mastodon.collection.ref.RefArrayList;
+import org.mastodon.RefPool;
 import org.mastodon.mamut.ProjectModel;
 import org.mastodon.model.tag.TagSetStructure;
-import org.mastodon.spatial.SpatioTemporalIndex;
 import org.mastodon.model.SelectionModel;
 import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
@@ -51,6 +55,7 @@ import org.mastodon.mamut.model.Link;
 import org.mastodon.ui.coloring.FixedColorGenerator;
 import org.mastodon.ui.coloring.GraphColorGenerator;
 import org.mastodon.ui.coloring.TagSetGraphColorGenerator;
+import org.scijava.app.StatusService;
 import org.scijava.command.DynamicCommand;
 import org.scijava.log.Logger;
 import org.scijava.plugin.Plugin;
@@ -63,10 +68,14 @@ import org.scijava.log.LogService;
 import org.scijava.prefs.PrefService;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
@@ -112,7 +121,7 @@ public class LineageExporter extends DynamicCommand
 	}
 
 	@Parameter(label = "Where to export the lineage:",
-			choices = {"yEd: into .graphml file","Blender: via an online connection","GraphStreamer: in a preview window"} )
+			choices = {"yEd: into .graphml file","Blender: via an online connection","GraphStreamer: in a preview window","Binary: into columnar .mlin file"} )
 	public String exportTarget;
 
 	@Parameter(visibility = ItemVisibility.MESSAGE)
@@ -123,6 +132,14 @@ public class LineageExporter extends DynamicCommand
 	@Parameter
 	private boolean doDebugGraphics = false;
 
+	/** optional params handed over to the sorter's dialog, e.g. when running headless */
+	@Parameter(visibility = ItemVisibility.INVISIBLE, persist = false, required = false)
+	private Map<String,Object> sorterDialogParams = null;
+
+	/** optional params handed over to the export-specific dialog, e.g. when running headless */
+	@Parameter(visibility = ItemVisibility.INVISIBLE, persist = false, required = false)
+	private Map<String,Object> exportDialogParams = null;
+
 	@Parameter
 	private LogService logServiceRef;
 	private Logger ownLogger;
@@ -133,10 +150,14 @@ public class LineageExporter extends DynamicCommand
 	@Parameter
 	private PrefService prefService;
 
+	@Parameter
+	private StatusService statusService;
+
 	private void adjustParams(Class<?> dialogClass, Map<String,Object> params) {
 		if (!exportMode.startsWith("with own"))
 			params.put("defaultBendingPointAbsoluteOffsetY", //this does not change the pref-stored value
 					prefService.getInt(dialogClass, "defaultBendingPointAbsoluteOffsetY", -80));
+		if (exportDialogParams != null) params.putAll(exportDialogParams);
 	}
 
 	@Override
@@ -146,9 +167,11 @@ public class LineageExporter extends DynamicCommand
 			ownLogger = logServiceRef.subLogger("Lineage exports in "+projectID);
 
 			//first: do we have some extra dialogs to take care of?
-			sorterOfDaughters = SortersChooserDlg.resolveSorterOfDaughters(sortMode,commandService, projectModel,projectID);
+			sorterOfDaughters = SortersChooserDlg.resolveSorterOfDaughters(sortMode,commandService, projectModel,projectID,
+					sorterDialogParams != null ? sorterDialogParams : Collections.emptyMap());
 			if (sorterOfDaughters == null) {
 				logServiceRef.info("Dialog canceled or some dialog error, exporting nothing.");
+				cancel("No sorter of daughters.");
 				return;
 			}
 
@@ -170,7 +193,15 @@ public class LineageExporter extends DynamicCommand
 				adjustParams(GraphStreamViewerDlg.class, runParams);
 				future = commandService.run(GraphStreamViewerDlg.class, true, runParams);
 			}
-			else logServiceRef.error("Selected unknown export mode, doing nothing.");
+			else if (exportTarget.startsWith("Binary")) {
+				runParams.put("mastodonProjectModel", projectModel);
+				adjustParams(BinaryLineageWriterDlg.class, runParams);
+				future = commandService.run(BinaryLineageWriterDlg.class, true, runParams);
+			}
+			else {
+				logServiceRef.error("Selected unknown export mode, doing nothing.");
+				cancel("Unknown export mode "+exportTarget);
+			}
 
 			if (future != null) {
 				//wait for the dialog to be resolved
@@ -207,106 +238,121 @@ public class LineageExporter extends DynamicCommand
 
 						//go!
 						selectionModel = projectModel.getSelectionModel();
-						isSelectionEmpty = selectionModel.isEmpty();
-						if (isSelectionEmpty) time2Gen2GraphExportable(ge);
-						else time2Gen2GraphExportable_rootsFromSelection(ge);
+						exportInto(ge, "Lineage export");
+
+						//keep re-exporting into the live view for as long as it is open
+						if (ge instanceof GraphStreamViewer && ((GraphStreamViewer)ge).isLiveMode()) {
+							final GraphExportable liveGe = ge;
+							final DebouncedGraphChanges changes = new DebouncedGraphChanges(
+									projectModel.getModel().getGraph(), () -> refreshLiveView(liveGe));
+							((GraphStreamViewer)ge).setOnWindowClosed(changes::stop);
+						}
 					}
 					else throw new IllegalStateException("Dialog "+m.getInfo().getTitle()+" is broken.");
 				}
-				else logServiceRef.info("Dialog canceled, exporting nothing.");
+				else {
+					logServiceRef.info("Dialog canceled, exporting nothing.");
+					cancel("Dialog canceled.");
+				}
 			}
 		} catch (InterruptedException e) {
 			logServiceRef.info("Dialog interrupted, doing nothing.");
+			cancel("Dialog interrupted.");
 		} catch (ExecutionException e) {
 			logServiceRef.error("Some error executing the additional dialog: "+e.getMessage());
+			cancel("Dialog failed: "+e.getMessage());
 		}
 	}
 
-	boolean isSelectionEmpty;
-	SelectionModel<Spot, Link> selectionModel;
-	GraphColorGenerator<Spot, Link> colorizer;
-
-	private void time2Gen2GraphExportable_rootsFromSelection(final GraphExportable ge)
+	private void exportInto(final GraphExportable ge, final String taskName)
 	{
-		final ModelGraph modelGraph = projectModel.getModel().getGraph();
-		final Link lRef = modelGraph.edgeRef();              //link reference
-		final Spot sRef = modelGraph.vertices().createRef(); //aux spot reference
-
-		int xLeftBound = 0;
-		final int[] xIgnoreCoords = new int[1];
-
-		for (Spot spot : selectionModel.getSelectedVertices())
-		{
-			//find how many _selected_ backward-references (time-wise) this spot has
-			int countBackwardLinks = 0;
-
-			final int time = spot.getTimepoint();
-			for (int n=0; n < spot.incomingEdges().size(); ++n)
-			{
-				spot.incomingEdges().get(n, lRef).getSource( sRef );
-				if (sRef.getTimepoint() < time && selectionModel.isSelected(sRef))
-				{
-					++countBackwardLinks;
-				}
-			}
-			for (int n=0; n < spot.outgoingEdges().size(); ++n)
-			{
-				spot.outgoingEdges().get(n, lRef).getTarget( sRef );
-				if (sRef.getTimepoint() < time && selectionModel.isSelected(sRef))
-				{
-					++countBackwardLinks;
-				}
-			}
+		isSelectionEmpty = selectionModel.isEmpty();
+		selectedSpots = snapshotSelection();
+		progress = new ProgressReporter(statusService, ownLogger, taskName,
+				isSelectionEmpty ? projectModel.getModel().getGraph().vertices().size()
+				                 : selectedSpots.cardinality());
+		//the layout shall not wait for the disk or network
+		final AsyncGraphExportable asyncGe = new AsyncGraphExportable(GraphExportableV2.of(ge), ownLogger);
+		if (isSelectionEmpty) time2Gen2GraphExportable(asyncGe);
+		else time2Gen2GraphExportable_rootsFromSelection(asyncGe);
+	}
 
-			//can this spot be root?
-			if (countBackwardLinks == 0)
-			{
-				ownLogger.info("Discovered root "+spot.getLabel());
-				xLeftBound += discoverEdge(ge,modelGraph, spot, 0,xLeftBound, xIgnoreCoords,0);
+	/** re-exports into the live view, only the trees touched by the changes are laid out
+	 *  again (the rest comes from the cached layout), and the view applies only what differs;
+	 *  the current selection is followed */
+	private void refreshLiveView(final GraphExportable ge)
+	{
+		//this update must not start before the previous one is shown,
+		//as both would be otherwise writing into the same view at the same time
+		final CompletableFuture<Void> previousExport = lastExport;
+		if (previousExport != null) {
+			try {
+				previousExport.join();
+			} catch (RuntimeException e) {
+				//the previous export has reported its failure already
 			}
-
 		}
 
-		modelGraph.vertices().releaseRef(sRef);
-		modelGraph.releaseRef(lRef);
+		try {
+			exportInto(ge, "Lineage live update");
+		} catch (RuntimeException e) {
+			ownLogger.error("Live update of the lineage failed: "+e.getMessage());
+		}
+	}
 
-		ge.close();
+	/** the I/O of the most recent export, set from the command's thread as well as
+	 *  from the thread that delivers the live updates */
+	private volatile CompletableFuture<Void> lastExport;
 
-		ownLogger.info("generation SELECTED graph rendered");
-		modelGraph.notifyGraphChanged();
+	/** returns the I/O of the most recent export, which completes (exceptionally if
+	 *  the export failed) when the exporter is closed, or null if nothing was exported */
+	public CompletableFuture<Void> getLastExport() {
+		return lastExport;
 	}
 
-	/** implements the "LineageExporter" functionality */
-	private void time2Gen2GraphExportable(final GraphExportable ge)
+	boolean isSelectionEmpty;
+	SelectionModel<Spot, Link> selectionModel;
+	GraphColorGenerator<Spot, Link> colorizer;
+	ProgressReporter progress;
+
+	/** pool indices of the spots selected when the export started, the selection is tested
+	 *  for every neighbour of every visited spot and the selection model is too slow for that */
+	BitSet selectedSpots;
+
+	private BitSet snapshotSelection()
 	{
-		//NB: this method could be in a class of its own... later...
+		final BitSet selected = new BitSet();
+		if (!isSelectionEmpty)
+			for (Spot spot : selectionModel.getSelectedVertices()) selected.set(spot.getInternalPoolIndex());
+		return selected;
+	}
 
-		//shortcuts to the data
-		final int timeFrom = projectModel.getMinTimepoint();
-		final int timeTill = projectModel.getMaxTimepoint();
+	private void time2Gen2GraphExportable_rootsFromSelection(final AsyncGraphExportable ge)
+	{
 		final ModelGraph modelGraph = projectModel.getModel().getGraph();
-
-		//aux Mastodon data: shortcuts and caches/proxies
-		final SpatioTemporalIndex< Spot > spots = projectModel.getModel().getSpatioTemporalIndex();
 		final Link lRef = modelGraph.edgeRef();              //link reference
 		final Spot sRef = modelGraph.vertices().createRef(); //aux spot reference
+		final Spot spot = modelGraph.vertices().createRef();
 
-		int xLeftBound = 0;
-		final int[] xIgnoreCoords = new int[1];
+		Throwable failure = null;
+		modelGraph.getLock().readLock().lock();
+		try {
+			int[] roots = new int[64];
+			int noOfRoots = 0;
 
-		//over all time points
-		for (int time = timeFrom; time <= timeTill; ++time)
-		{
-			//over all spots in the current time point
-			for ( final Spot spot : spots.getSpatialIndex( time ) )
+			final RefPool<Spot> pool = modelGraph.vertices().getRefPool();
+			for (int idx = selectedSpots.nextSetBit(0); idx >= 0; idx = selectedSpots.nextSetBit(idx+1))
 			{
-				//find how many backward-references (time-wise) this spot has
+				pool.getObject(idx, spot);
+
+				//find how many _selected_ backward-references (time-wise) this spot has
 				int countBackwardLinks = 0;
 
+				final int time = spot.getTimepoint();
 				for (int n=0; n < spot.incomingEdges().size(); ++n)
 				{
 					spot.incomingEdges().get(n, lRef).getSource( sRef );
-					if (sRef.getTimepoint() < time)
+					if (sRef.getTimepoint() < time && selectedSpots.get(sRef.getInternalPoolIndex()))
 					{
 						++countBackwardLinks;
 					}
@@ -314,7 +360,7 @@ public class LineageExporter extends DynamicCommand
 				for (int n=0; n < spot.outgoingEdges().size(); ++n)
 				{
 					spot.outgoingEdges().get(n, lRef).getTarget( sRef );
-					if (sRef.getTimepoint() < time)
+					if (sRef.getTimepoint() < time && selectedSpots.get(sRef.getInternalPoolIndex()))
 					{
 						++countBackwardLinks;
 					}
@@ -323,147 +369,169 @@ public class LineageExporter extends DynamicCommand
 				//can this spot be root?
 				if (countBackwardLinks == 0)
 				{
-					ownLogger.info("Discovered root "+spot.getLabel());
-					xLeftBound += discoverEdge(ge,modelGraph, spot, 0,xLeftBound, xIgnoreCoords,0);
+					if (doDebugMessages) ownLogger.info("Discovered root "+spot.getLabel());
+					if (noOfRoots == roots.length) roots = Arrays.copyOf(roots, 2*noOfRoots);
+					roots[noOfRoots++] = idx;
 				}
 			}
-		}
 
-		modelGraph.vertices().releaseRef(sRef);
-		modelGraph.releaseRef(lRef);
+			//the layout depends on what is selected, so the key must tell apart every selection
+			final StringBuilder selectionKey = new StringBuilder("selection ");
+			for (long word : selectedSpots.toLongArray())
+				selectionKey.append(Long.toHexString(word)).append(':');
+			exportTrees(ge, modelGraph, Arrays.copyOf(roots, noOfRoots), selectionKey.toString());
+		} catch (RuntimeException | Error e) {
+			failure = e;
+			throw e;
+		} finally {
+			modelGraph.getLock().readLock().unlock();
+			modelGraph.vertices().releaseRef(spot);
+			modelGraph.vertices().releaseRef(sRef);
+			modelGraph.releaseRef(lRef);
+			//NB: the exporter must be closed even if failed, someone may be waiting for it
+			closeAndReport(ge, failure, "generation SELECTED graph rendered");
+		}
+		modelGraph.notifyGraphChanged();
+	}
 
-		ge.close();
+	/** implements the "LineageExporter" functionality */
+	private void time2Gen2GraphExportable(final AsyncGraphExportable ge)
+	{
+		final ModelGraph modelGraph = projectModel.getModel().getGraph();
 
-		ownLogger.info("generation graph rendered");
+		Throwable failure = null;
+		modelGraph.getLock().readLock().lock();
+		try {
+			//the roots are cached (and kept up-to-date) across the exports, they come ordered by time
+			final RootsIndex rootsIndex = RootsIndex.getFor(projectModel);
+			rootsIndex.ensureUpToDate();
+			if (doDebugMessages) {
+				final Spot rootRef = modelGraph.vertices().createRef();
+				rootsIndex.forEachRoot(rootRef, spot -> ownLogger.info("Discovered root "+spot.getLabel()));
+				modelGraph.vertices().releaseRef(rootRef);
+			}
+			exportTrees(ge, modelGraph, rootsIndex.getRoots(), "all");
+		} catch (RuntimeException | Error e) {
+			failure = e;
+			throw e;
+		} finally {
+			modelGraph.getLock().readLock().unlock();
+			//NB: the exporter must be closed even if failed, someone may be waiting for it
+			closeAndReport(ge, failure, "generation graph rendered");
+		}
 		modelGraph.notifyGraphChanged();
 	}
 
-	private boolean isEligible(Spot s)
+	/** the export is finished only once the exporter's I/O is over, which is waited for in
+	 *  the exporter's own thread, so that this command can finish in the meantime;
+	 *  the 'failure' is null unless the export could not be finished */
+	private void closeAndReport(final AsyncGraphExportable ge, final Throwable failure, final String doneMsg)
 	{
-		return isSelectionEmpty || selectionModel.isSelected(s);
+		//the next export replaces the 'progress' before this one is over
+		final ProgressReporter exportProgress = progress;
+		final CompletableFuture<Void> export = failure == null ? ge.closeAsync() : ge.closeAsync(failure);
+		lastExport = export;
+		export.whenComplete((v,e) -> {
+			exportProgress.done();
+			if (e == null) ownLogger.info(doneMsg);
+			else ownLogger.error("Export failed: "+e.getMessage());
+		});
 	}
 
-	private DescendantsSorter sorterOfDaughters;
-
-	/** returns width of the tree induced with the given 'root' */
-	private int discoverEdge(final GraphExportable ge, final ModelGraph modelGraph,
-	                         final Spot root,
-	                         final int generation,
-	                         final int xLeftBound,
-	                         final int[] xCoords, final int xCoordsPos)
+	/** obtains the layout of the trees of the given roots, and sends them out next to each other;
+	 *  the 'eligibleSpotsKey' must tell apart the different outcomes of isEligible() */
+	private void exportTrees(final GraphExportableV2 ge, final ModelGraph modelGraph,
+	                         final int[] roots, final String eligibleSpotsKey)
 	{
-		final boolean doStraightL = exportMode.startsWith("with straight");
+		//the layout is cached across the exports as long as the sorter can tell when it would
+		//sort differently; in the debug mode, the sorter is always executed to have its report
+		final String sorterKey = sorterOfDaughters.getCacheKey();
+		final LineageLayout layout = LineageLayout.getFor(modelGraph,
+				sorterKey == null || doDebugMessages ? null
+						: sorterKey + " | " + eligibleSpotsKey + " | column " + ge.get_xColumnWidth());
+		layout.update(roots, sorterOfDaughters, this::isEligible, ge.get_xColumnWidth(),
+				doDebugMessages ? ownLogger : null, progress);
 
-		final Spot spot = modelGraph.vertices().createRef(); //aux spot reference
-		final Spot fRef = modelGraph.vertices().createRef(); //spot's ancestor buddy (forward)
-		final Link lRef = modelGraph.edgeRef();              //link reference
-		final Spot tRef = modelGraph.vertices().createRef(); //tmp reference on spot
-		final RefList<Spot> daughterList = new RefArrayList<>(modelGraph.vertices().getRefPool(),3);
+		final boolean doStraightL = exportMode.startsWith("with straight");
+		final int yStep = ge.get_yLineStep();
+		final Spot nRef = modelGraph.vertices().createRef();
 
-		spot.refTo( root );
-		while (true)
-		{
-			//shortcut to the time of the current node/spot
-			final int time = spot.getTimepoint();
+		//the trees were laid out each in its own coordinates, they are placed next to each other
+		final int[] xLeftBounds = new int[roots.length];
+		for (int r = 1; r < roots.length; ++r)
+			xLeftBounds[r] = xLeftBounds[r-1] + layout.getTree(roots[r-1]).width;
 
-			//find how many forward-references (time-wise) this spot has
-			int countForwardLinks = 0;
+		//every tree is sent out in bulk, first its nodes and then the lines among them;
+		//the arrays are re-used for all trees, they only grow when a larger tree comes
+		int[] nodeIDs = new int[0], nodeXs = new int[0], nodeYs = new int[0], nodeColors = new int[0], nodeTimes = new int[0];
+		String[] nodeLabels = new String[0];
+		int[] fromIDs = new int[0], toIDs = new int[0], toXs = new int[0], toYs = new int[0];
 
-			for (int n=0; n < spot.incomingEdges().size(); ++n)
-			{
-				spot.incomingEdges().get(n, lRef).getSource( fRef );
-				if (fRef.getTimepoint() > time && isEligible(fRef))
-				{
-					++countForwardLinks;
-					tRef.refTo(fRef); //keep the last used valid reference
-				}
+		for (int r = 0; r < roots.length; ++r)
+		{
+			progress.addRoot();
+			final LineageLayout.Tree tree = layout.getTree(roots[r]);
+			final int xLeftBound = xLeftBounds[r];
+
+			final int noOfNodes = tree.nodes.length;
+			if (noOfNodes > nodeIDs.length) {
+				nodeIDs = new int[noOfNodes];
+				nodeXs = new int[noOfNodes];
+				nodeYs = new int[noOfNodes];
+				nodeColors = new int[noOfNodes];
+				nodeTimes = new int[noOfNodes];
+				nodeLabels = new String[noOfNodes];
 			}
-			for (int n=0; n < spot.outgoingEdges().size(); ++n)
-			{
-				spot.outgoingEdges().get(n, lRef).getTarget( fRef );
-				if (fRef.getTimepoint() > time && isEligible(fRef))
-				{
-					++countForwardLinks;
-					tRef.refTo(fRef);
-				}
+			final int noOfLines = tree.daughters.length;
+			if (noOfLines > fromIDs.length) {
+				fromIDs = new int[noOfLines];
+				toIDs = new int[noOfLines];
+				toXs = new int[noOfLines];
+				toYs = new int[noOfLines];
 			}
 
-			if (countForwardLinks == 1)
-			{
-				//just a vertex on "a string", move over it
-				spot.refTo( tRef );
-			}
-			else
+			for (int k = 0; k < noOfNodes; ++k)
 			{
-				int xRightBound = xLeftBound;
-				final int[] childrenXcoords = new int[countForwardLinks];
-
-				//we're leaf or branching point
-				if (countForwardLinks > 1)
-				{
-					//branching point -> enumerate all descendants and restart searches from them
-					daughterList.clear();
-					for (int n=0; n < spot.incomingEdges().size(); ++n)
-					{
-						spot.incomingEdges().get(n, lRef).getSource( fRef );
-						if (fRef.getTimepoint() > time && isEligible(fRef)) daughterList.add(fRef);
-					}
-					for (int n=0; n < spot.outgoingEdges().size(); ++n)
-					{
-						spot.outgoingEdges().get(n, lRef).getTarget( fRef );
-						if (fRef.getTimepoint() > time && isEligible(fRef)) daughterList.add(fRef);
-					}
-					if (doDebugMessages) sorterOfDaughters.sort(daughterList,ownLogger);
-					else sorterOfDaughters.sort(daughterList);
-
-					//process the daughters in the given order
-					int childCnt = 0;
-					for (Spot d : daughterList) {
-						xRightBound += discoverEdge(ge,modelGraph, d, generation+1,xRightBound, childrenXcoords,childCnt);
-						++childCnt;
-					}
-				}
-				else
-				{
-					//we're a leaf -> pretend a subtree of single column width
-					xRightBound += ge.get_xColumnWidth();
+				final int nodeIdx = tree.nodes[k];
+				final int generation = layout.getGeneration(nodeIdx);
+				final Spot node = modelGraph.vertices().getRefPool().getObject(nodeIdx, nRef);
+				nodeIDs[k] = nodeIdx;
+				nodeLabels[k] = node.getLabel();
+				nodeColors[k] = colorizer.color(node);
+				//NB: the exporter may need it only after the graph lock is released
+				nodeTimes[k] = node.getTimepoint();
+				nodeXs[k] = xLeftBound + layout.getX(nodeIdx);
+				nodeYs[k] = yStep*generation;
+
+				//enumerate all ancestors (children) and connect them (to this parent)
+				for (int d = tree.daughtersStart[k]; d < tree.daughtersStart[k+1]; ++d) {
+					if (doDebugMessages) ownLogger.info("generation: "+generation+"   "+nodeIdx+" -> "+tree.daughters[d]);
+					fromIDs[d] = nodeIdx;
+					toIDs[d] = tree.daughters[d];
+					toXs[d] = xLeftBound + layout.getX(tree.daughters[d]);
+					toYs[d] = yStep*(generation+1);
 				}
 
-				final String rootID = Integer.toString(root.getInternalPoolIndex());
-				xCoords[xCoordsPos] = countForwardLinks == 0
-				                      ? (xRightBound + xLeftBound)/2
-				                      : (childrenXcoords[0] + childrenXcoords[countForwardLinks-1])/2;
-				//gsv.graph.addNode(rootID).addAttribute("xyz", new int[] {!,!,0});
-				ge.addNode(rootID, root.getLabel(),colorizer.color(root),
-				           xCoords[xCoordsPos],ge.get_yLineStep()*generation);
+				//leaf is just a vertex node (there's no one to connect to)
+				if (doDebugMessages && tree.daughtersStart[k] == tree.daughtersStart[k+1])
+					ownLogger.info("Discovered \"leaf\" "+node.getLabel());
+			}
 
-				if (countForwardLinks > 1)
-				{
-					int childCnt = 0;
-					//enumerate all ancestors (children) and connect them (to this parent)
-					for (Spot d : daughterList) {
-						//edge
-						final String toID = Integer.toString(d.getInternalPoolIndex());
-						ownLogger.info("generation: "+generation+"   "+rootID+" -> "+toID);
-						if (doStraightL) ge.addStraightLine( rootID, toID );
-						else ge.addBendedLine( rootID, toID,
-								childrenXcoords[childCnt++],ge.get_yLineStep()*(generation+1) );
-					}
-				}
-				else
-				{
-					//leaf is just a vertex node (there's no one to connect to)
-					ownLogger.info("Discovered \"leaf\" "+root.getLabel());
-				}
+			//NB: the root is the last node in the tree's (post-)order
+			ge.startTree(roots[r], nodeLabels[noOfNodes-1]);
+			ge.addNodes(nodeIDs, nodeLabels, nodeColors, nodeXs, nodeYs, nodeTimes, noOfNodes);
+			if (doStraightL) ge.addStraightLines(fromIDs, toIDs, noOfLines);
+			else ge.addBendedLines(fromIDs, toIDs, toXs, toYs, noOfLines);
+			ge.finishTree();
+		}
 
-				//clean up first before exiting
-				modelGraph.vertices().releaseRef(spot);
-				modelGraph.vertices().releaseRef(fRef);
-				modelGraph.vertices().releaseRef(tRef);
-				modelGraph.releaseRef(lRef);
+		modelGraph.vertices().releaseRef(nRef);
+	}
 
-				return (xRightBound - xLeftBound);
-			}
-		}
+	private boolean isEligible(Spot s)
+	{
+		return isSelectionEmpty || selectedSpots.get(s.getInternalPoolIndex());
 	}
+
+	private DescendantsSorter sorterOfDaughters;
 }
@@ -0,0 +1,129 @@
+/*-
+ * #%L
+ * Online Mastodon Exports
+ * %%
+ * Copyright (C) 2021 - 2024 Vladimír Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cz.it4i.ulman.transfers;
+
+import org.scijava.app.StatusService;
+import org.scijava.log.Logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Counts the processed spots, roots and sent bytes of one (possibly multi-threaded)
+ *  export, and reports them, together with the throughput and the estimated time
+ *  of arrival, via the SciJava's status bar. The reporting is throttled, so the
+ *  counting methods can be called from within the hot loops. */
+public class ProgressReporter {
+	/** the status bar is updated at most this often */
+	public static final long REPORT_PERIOD_MS = 250;
+
+	private final StatusService statusService;
+	private final Logger logger;
+	private final String taskName;
+	private final long expectedSpots;
+
+	private final LongAdder spots = new LongAdder();
+	private final LongAdder roots = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+
+	private final long startTime = System.nanoTime();
+	private final AtomicLong nextReportTime = new AtomicLong(startTime);
+
+	/** 'statusService' and 'logger' may be null, 'expectedSpots' may be 0 if not known
+	 *  (and no ETA is reported then) */
+	public ProgressReporter(final StatusService statusService, final Logger logger,
+	                        final String taskName, final long expectedSpots) {
+		this.statusService = statusService;
+		this.logger = logger;
+		this.taskName = taskName;
+		this.expectedSpots = expectedSpots;
+	}
+
+	public void addSpots(final int count) {
+		spots.add(count);
+		reportIfDue();
+	}
+
+	public void addSpot() {
+		spots.increment();
+		reportIfDue();
+	}
+
+	public void addRoot() {
+		roots.increment();
+		reportIfDue();
+	}
+
+	public void addBytes(final long count) {
+		bytes.add(count);
+	}
+
+	public long getNoOfSpots() {
+		return spots.sum();
+	}
+
+	/** clears the status bar and logs the final summary */
+	public void done() {
+		if (statusService != null) statusService.clearStatus();
+		if (logger != null) logger.info(statusMessage(System.nanoTime(), false) + ", done");
+	}
+
+	private void reportIfDue() {
+		final long now = System.nanoTime();
+		final long next = nextReportTime.get();
+		//only one of the competing threads gets to report
+		if (now - next < 0 || !nextReportTime.compareAndSet(next, now + REPORT_PERIOD_MS*1000000L)) return;
+		if (statusService == null) return;
+
+		final long spotsSoFar = spots.sum();
+		if (expectedSpots > 0)
+			statusService.showStatus((int)Math.min(1000L*spotsSoFar/expectedSpots, 1000), 1000,
+					statusMessage(now, true));
+		else
+			statusService.showStatus(statusMessage(now, true));
+	}
+
+	private String statusMessage(final long now, final boolean withETA) {
+		final long spotsSoFar = spots.sum();
+		final long bytesSoFar = bytes.sum();
+		final double secs = Math.max(now - startTime, 1) / 1e9;
+		final double spotsPerSec = spotsSoFar / secs;
+
+		final StringBuilder sb = new StringBuilder(taskName).append(": ");
+		sb.append(spotsSoFar);
+		if (expectedSpots > 0) sb.append('/').append(expectedSpots);
+		sb.append(" spots, ").append(roots.sum()).append(" roots");
+		if (bytesSoFar > 0) sb.append(String.format(", %.1f MB sent", bytesSoFar / 1048576.0));
+		sb.append(String.format(", %.0f spots/s", spotsPerSec));
+		if (withETA && expectedSpots > 0 && spotsPerSec > 0 && spotsSoFar < expectedSpots)
+			sb.append(String.format(", ETA %.0f s", (expectedSpots - spotsSoFar) / spotsPerSec));
+		else if (!withETA)
+			sb.append(String.format(", took %.1f s", secs));
+		return sb.toString();
+	}
+}
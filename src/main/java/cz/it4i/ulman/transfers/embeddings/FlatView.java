@@ -29,8 +29,11 @@
 package cz.it4i.ulman.transfers.embeddings;
 
 import cz.it4i.ulman.transfers.BlenderSendingUtils;
+import cz.it4i.ulman.transfers.ProgressReporter;
 import cz.it4i.ulman.transfers.graphics.EmptyIgnoringStreamObservers;
 import cz.it4i.ulman.transfers.graphics.protocol.BucketsWithGraphics;
+import cz.it4i.ulman.transfers.indices.RootsIndex;
+import cz.it4i.ulman.transfers.indices.TrackSegmentsIndex;
 import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import org.joml.Vector3d;
@@ -47,6 +50,7 @@ import org.mastodon.ui.coloring.TagSetGraphColorGenerator;
 import org.scijava.ItemVisibility;
 import org.scijava.command.Command;
 import org.scijava.command.DynamicCommand;
+import org.scijava.app.StatusService;
 import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
@@ -120,6 +124,9 @@ public class FlatView extends DynamicCommand {
 	@Parameter
 	private LogService logService;
 
+	@Parameter
+	private StatusService statusService;
+
 	@Parameter(persist = false)
 	private ProjectModel projectModel;
 
@@ -130,6 +137,7 @@ public class FlatView extends DynamicCommand {
 		Optional<Spot> searchSpot = vertices.stream().filter(s -> s.getLabel().equals(spotNorthPoleName)).findFirst();
 		if (!searchSpot.isPresent()) {
 			logService.error("Couldn't find (north pole) spot with label "+spotNorthPoleName);
+			cancel("Couldn't find (north pole) spot with label "+spotNorthPoleName);
 			return;
 		}
 		final Vector3d posN = createVector3d(searchSpot.get());
@@ -138,6 +146,7 @@ public class FlatView extends DynamicCommand {
 		searchSpot = vertices.stream().filter(s -> s.getLabel().equals(spotSouthPoleName)).findFirst();
 		if (!searchSpot.isPresent()) {
 			logService.error("Couldn't find (south pole) spot with label "+spotSouthPoleName);
+			cancel("Couldn't find (south pole) spot with label "+spotSouthPoleName);
 			return;
 		}
 		centre = createVector3d(searchSpot.get());
@@ -148,6 +157,7 @@ public class FlatView extends DynamicCommand {
 		searchSpot = vertices.stream().filter(s -> s.getLabel().equals(spotViewCentreName)).findFirst();
 		if (!searchSpot.isPresent()) {
 			logService.error("Couldn't find (view centre pole) spot with label "+ spotViewCentreName);
+			cancel("Couldn't find (view centre pole) spot with label "+ spotViewCentreName);
 			return;
 		}
 		frontVec = createVector3d(searchSpot.get());
@@ -186,15 +196,22 @@ public class FlatView extends DynamicCommand {
 		final Vector3d runnerProjectedToLateralPlane = new Vector3d();
 		final SpotsIterator visitor = new SpotsIterator(projectModel,
 				logService.subLogger("flat export"));
-
+		final TrackSegmentsIndex tracksIndex = TrackSegmentsIndex.getFor(projectModel);
+
+		//the batches are prepared while the graph is locked, and sent only after it is unlocked
+		//so that the graph is not locked while waiting for the network
+		final List<BucketsWithGraphics.BatchOfGraphics> batches = new ArrayList<>();
+		final BucketsWithGraphics.ClientIdentification clientIdObj = BucketsWithGraphics.ClientIdentification
+				.newBuilder()
+				.setClientName(clientName)
+				.build();
+		final ProgressReporter progress = new ProgressReporter(statusService,
+				logService.subLogger("flat export"), "Flat view " + dataName, vertices.size());
+
+		boolean isGraphLocked = true;
+		projectModel.getModel().getGraph().getLock().readLock().lock();
 		try {
-			final BlenderSendingUtils.BlenderConnectionHandle conn
-					= BlenderSendingUtils.connectToBlender(connectURL, clientName);
-			conn.sendInitialIntroHandshake();
-
-			//now keep pushing data away to the channel
-			final StreamObserver<BucketsWithGraphics.BatchOfGraphics> dataSender
-					= conn.commContinuous.replaceGraphics(new EmptyIgnoringStreamObservers());
+			tracksIndex.ensureUpToDate();
 
 			final BucketsWithGraphics.Vector3D.Builder vBuilder
 					= BucketsWithGraphics.Vector3D.newBuilder();
@@ -208,7 +225,7 @@ public class FlatView extends DynamicCommand {
 			//send debug data
 			if (showDebug) {
 				final BucketsWithGraphics.BatchOfGraphics.Builder debugNodeBuilder = BucketsWithGraphics.BatchOfGraphics.newBuilder()
-						.setClientID(conn.clientIdObj)
+						.setClientID(clientIdObj)
 						.setCollectionName(dataName)
 						.setDataName("orientation outline")
 						.setDataID(0);
@@ -234,7 +251,7 @@ public class FlatView extends DynamicCommand {
 				dBuilder.setEndPos(vBuilder.setX((float) runner.x).setY((float) runner.y).setZ((float) runner.z));
 				dBuilder.setColorXRGB(0x0000FF);
 				debugNodeBuilder.addVectors(dBuilder);
-				dataSender.onNext(debugNodeBuilder.build());
+				batches.add(debugNodeBuilder.build());
 			}
 			//end of: send debug data
 
@@ -246,14 +263,19 @@ public class FlatView extends DynamicCommand {
 			double[] xyD1 = { 0.f, 0.f };
 			org.mastodon.collection.RefList<Spot> daughterList = new RefArrayList<>(vertices.getRefPool());
 
-			visitor.visitRootsFromEntireGraph( root -> {
+			final RootsIndex rootsIndex = RootsIndex.getFor(projectModel);
+			rootsIndex.ensureUpToDate();
+			final Spot rootRef = projectModel.getModel().getGraph().vertexRef();
+			rootsIndex.forEachRoot(rootRef, root -> {
+				progress.addRoot();
 				final BucketsWithGraphics.BatchOfGraphics.Builder nodeBuilder = BucketsWithGraphics.BatchOfGraphics.newBuilder()
-						.setClientID(conn.clientIdObj)
+						.setClientID(clientIdObj)
 						.setCollectionName(dataName)
 						.setDataName(root.getLabel())
 						.setDataID(root.getInternalPoolIndex());
 
 				visitor.visitDownstreamSpots(root, spot -> {
+					progress.addSpot();
 					if (!showDO_hideSpotsForTheSakeOfLines) {
 						get2DPos(spot, xyS);
 
@@ -262,15 +284,16 @@ public class FlatView extends DynamicCommand {
 						sBuilder.setTime(spot.getTimepoint());
 						sBuilder.setRadius(spheresRadius);
 						sBuilder.setColorXRGB(colorizer.color(spot));
-						//logService.info("adding sphere at: "+sBuilder.getTime());
 						nodeBuilder.addSpheres(sBuilder);
 					}
 
-					if (visitor.countDescendants(spot) == 2) {
+					if (tracksIndex.getNoOfDaughters(spot) == 2) {
 						//reached a division point
 						if (showDO_motherTrackLines) {
 							trackEnds.refTo(spot);
-							visitor.findUpstreamSpot(trackEnds,trackStarts,showDO_motherTrackHistoryTPs);
+							tracksIndex.getTrackStart(trackEnds,trackStarts);
+							if (trackEnds.getTimepoint() - trackStarts.getTimepoint() > showDO_motherTrackHistoryTPs)
+								visitor.findUpstreamSpot(trackEnds,trackStarts,showDO_motherTrackHistoryTPs);
 
 							get2DPos(trackStarts, xyS);
 							get2DPos(trackEnds, xyE);
@@ -298,20 +321,42 @@ public class FlatView extends DynamicCommand {
 						}
 					}
 				});
-				dataSender.onNext( nodeBuilder.build() );
+				batches.add( nodeBuilder.build() );
 			});
-			dataSender.onCompleted();
 
+			projectModel.getModel().getGraph().releaseRef(rootRef);
 			projectModel.getModel().getGraph().releaseRef(trackStarts);
 			projectModel.getModel().getGraph().releaseRef(trackEnds);
 
+			//all is prepared, only the sending remains
+			projectModel.getModel().getGraph().getLock().readLock().unlock();
+			isGraphLocked = false;
+
+			final BlenderSendingUtils.BlenderConnectionHandle conn
+					= BlenderSendingUtils.connectToBlender(connectURL, clientName);
+			conn.sendInitialIntroHandshake();
+
+			//now keep pushing data away to the channel
+			final StreamObserver<BucketsWithGraphics.BatchOfGraphics> dataSender
+					= conn.commContinuous.replaceGraphics(new EmptyIgnoringStreamObservers());
+			for (BucketsWithGraphics.BatchOfGraphics batch : batches) {
+				progress.addBytes(batch.getSerializedSize());
+				dataSender.onNext( batch );
+			}
+			dataSender.onCompleted();
+			progress.done();
+
 			conn.closeConnection();
 		}
 		catch (StatusRuntimeException e) {
 			logService.error("Mastodon network sender: GRPC: " + e.getMessage());
+			cancel("GRPC: " + e.getMessage());
 		} catch (Exception e) {
 			logService.error("Mastodon network sender: Error: " + e.getMessage());
 			e.printStackTrace();
+			cancel("Error: " + e.getMessage());
+		} finally {
+			if (isGraphLocked) projectModel.getModel().getGraph().getLock().readLock().unlock();
 		}
 	}
 
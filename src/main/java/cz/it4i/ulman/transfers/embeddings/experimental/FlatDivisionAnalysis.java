@@ -28,6 +28,7 @@
  */
 package cz.it4i.ulman.transfers.embeddings.experimental;
 
+import cz.it4i.ulman.transfers.indices.TrackSegmentsIndex;
 import org.joml.Vector3d;
 import org.mastodon.collection.ref.RefArrayList;
 import org.mastodon.mamut.ProjectModel;
@@ -168,24 +169,33 @@ public class FlatDivisionAnalysis extends DynamicCommand {
 		final SpotsIterator visitor = new SpotsIterator(projectModel,
 				logService.subLogger("flat export"));
 
+		final TrackSegmentsIndex tracksIndex = TrackSegmentsIndex.getFor(projectModel);
+
 		org.mastodon.collection.RefList<Spot> mothers = new RefArrayList<>(vertices.getRefPool());
 
-		visitor.visitRootsFromEntireGraph( root -> {
-			visitor.visitDownstreamSpots(root, spot -> {
-				if (visitor.countDescendants(spot) == 2) mothers.add(spot);
+		projectModel.getModel().getGraph().getLock().readLock().lock();
+		try {
+			tracksIndex.ensureUpToDate();
+			visitor.visitRootsFromEntireGraph( root -> {
+				visitor.visitDownstreamSpots(root, spot -> {
+					if (tracksIndex.getNoOfDaughters(spot) == 2) mothers.add(spot);
+				});
 			});
-		});
-
-		double[] xy = { 0.f, 0.f };
-		Spot trackStarts = projectModel.getModel().getGraph().vertexRef();
-		for (Spot m : mothers) {
-			get2DPos(m, xy);
-			visitor.findUpstreamSpot(m,trackStarts,999);
-			System.out.println("Mother "+m.getLabel()
-				+" at TP="+m.getTimepoint()+" @ xy="+xy[0]
-				+","+xy[1]+":");
-			System.out.println("  started with "+trackStarts.getLabel()
-				+" at TP="+trackStarts.getTimepoint());
+
+			double[] xy = { 0.f, 0.f };
+			Spot trackStarts = projectModel.getModel().getGraph().vertexRef();
+			for (Spot m : mothers) {
+				get2DPos(m, xy);
+				tracksIndex.getTrackStart(m,trackStarts);
+				System.out.println("Mother "+m.getLabel()
+					+" at TP="+m.getTimepoint()+" @ xy="+xy[0]
+					+","+xy[1]+":");
+				System.out.println("  started with "+trackStarts.getLabel()
+					+" at TP="+trackStarts.getTimepoint());
+			}
+			projectModel.getModel().getGraph().releaseRef(trackStarts);
+		} finally {
+			projectModel.getModel().getGraph().getLock().readLock().unlock();
 		}
 	}
 
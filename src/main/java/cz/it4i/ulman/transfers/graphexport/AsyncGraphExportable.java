@@ -0,0 +1,339 @@
+/*-
+ * #%L
+ * Online Mastodon Exports
+ * %%
+ * Copyright (C) 2021 - 2024 Vladimír Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cz.it4i.ulman.transfers.graphexport;
+
+import org.scijava.log.Logger;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Wraps any GraphExportableV2 so that the caller never waits for its disk or network I/O:
+ * the add- (and set-) calls are only queued into a bounded buffer from which an own thread
+ * hands them over to the wrapped exporter. The caller waits only if the buffer is full.
+ * The wrapped exporter is closed from the own thread too, see closeAsync().
+ *
+ * The bulk calls copy the given arrays because the callers are free to re-use them.
+ */
+public class AsyncGraphExportable extends AbstractGraphExporter implements GraphExportableV2
+{
+	/** how many calls can be waiting for the wrapped exporter */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	public AsyncGraphExportable(final GraphExportableV2 sink, final Logger logger)
+	{
+		this(sink, logger, DEFAULT_CAPACITY);
+	}
+
+	public AsyncGraphExportable(final GraphExportableV2 sink, final Logger logger, final int capacity)
+	{
+		this.sink = sink;
+		this.logger = logger;
+		queue = new ArrayBlockingQueue<>(capacity);
+
+		//the getters are answered from own copies of the settings
+		xColumnWidth = sink.get_xColumnWidth();
+		yLineStep = sink.get_yLineStep();
+		defaultBendingPointAbsoluteOffsetY = sink.get_defaultBendingPointAbsoluteOffsetY();
+		defaultNodeWidth = sink.get_defaultNodeWidth();
+		defaultNodeHeight = sink.get_defaultNodeHeight();
+		defaultNodeColour = sink.get_defaultNodeColour();
+
+		PENDING.add(closed);
+		closed.whenComplete((v,e) -> PENDING.remove(closed));
+
+		ioThread = new Thread(this::drainQueue, "GraphExportable I/O of "+sink.getClass().getSimpleName());
+		ioThread.setDaemon(true);
+		ioThread.start();
+	}
+
+	/** requests the wrapped exporter to close after all queued calls are processed, and
+	 *  returns immediately; the returned future completes when the wrapped exporter's close()
+	 *  is over, that is, when the data are flushed into the file or delivered to the server */
+	public CompletableFuture<Void> closeAsync()
+	{
+		if (!isClosing) {
+			isClosing = true;
+			put(CLOSE);
+		}
+		return closed;
+	}
+
+	/** same as closeAsync(), but the returned future completes with the given 'failure'
+	 *  (still after the wrapped exporter is closed); meant for the producers who could
+	 *  not finish their export, so that no one waits for this exporter forever */
+	public CompletableFuture<Void> closeAsync(final Throwable failure)
+	{
+		if (producerFailure == null) producerFailure = failure;
+		return closeAsync();
+	}
+
+	/** same as closeAsync(), except that it returns nothing */
+	@Override
+	public void close()
+	{
+		closeAsync();
+	}
+
+	/** waits until all AsyncGraphExportables, which are not closed yet, are closed;
+	 *  useful before the data they export (e.g. the project) are released or the JVM ends */
+	public static void awaitAllPending()
+	{
+		for (CompletableFuture<Void> f : PENDING.toArray(new CompletableFuture[0])) {
+			try {
+				f.join();
+			} catch (RuntimeException e) {
+				/* the failure was already reported by its I/O thread */
+			}
+		}
+	}
+
+	// -----------------------------------------------------------------------------
+	private static final Set<CompletableFuture<Void>> PENDING = ConcurrentHashMap.newKeySet();
+
+	private final GraphExportableV2 sink;
+	private final Logger logger;
+	private final BlockingQueue<Consumer<GraphExportableV2>> queue;
+	private final Thread ioThread;
+	private final CompletableFuture<Void> closed = new CompletableFuture<>();
+	private volatile boolean isClosing = false;
+	/** given to closeAsync(Throwable), reported only after the wrapped exporter is closed */
+	private volatile Throwable producerFailure = null;
+
+	/** the marker of the end of the queue */
+	private static final Consumer<GraphExportableV2> CLOSE = s -> {};
+
+	private void put(final Consumer<GraphExportableV2> call)
+	{
+		if (isClosing && call != CLOSE)
+			throw new IllegalStateException("Exporting into already closed "+ioThread.getName());
+		try {
+			queue.put(call);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for "+ioThread.getName());
+		}
+	}
+
+	/** NB: whatever happens, this thread keeps taking from the queue until CLOSE comes,
+	 *  otherwise the caller could wait forever in put(); the 'closed' is completed only
+	 *  after the wrapped exporter is closed, also when something has failed before */
+	private void drainQueue()
+	{
+		Throwable failure = null;
+		while (true) {
+			final Consumer<GraphExportableV2> call;
+			try {
+				call = queue.take();
+			} catch (InterruptedException e) {
+				if (failure == null) {
+					logger.error("Export in "+ioThread.getName()+" interrupted, ignoring the rest of it.");
+					failure = e;
+				}
+				continue;
+			}
+
+			if (call == CLOSE) {
+				try {
+					sink.close();
+				} catch (Throwable e) {
+					if (failure == null) {
+						logger.error("Closing of "+ioThread.getName()+" failed: "+e.getMessage());
+						failure = e;
+					}
+				}
+				//the producer's failure is the reason why the export is incomplete
+				final Throwable producerFailure = this.producerFailure;
+				if (producerFailure != null) {
+					if (failure != null && failure != producerFailure) producerFailure.addSuppressed(failure);
+					failure = producerFailure;
+				}
+				if (failure == null) closed.complete(null);
+				else closed.completeExceptionally(failure);
+				return;
+			}
+
+			//after a failure, the queue is only emptied to not block the caller
+			if (failure != null) continue;
+			try {
+				call.accept(sink);
+			} catch (Throwable e) {
+				//NB: also Errors (e.g. OutOfMemoryError in the sink) must not stop this thread
+				logger.error("Export in "+ioThread.getName()+" failed, ignoring the rest of it: "+e.getMessage());
+				failure = e;
+			}
+		}
+	}
+	// -----------------------------------------------------------------------------
+
+	@Override
+	public void set_xColumnWidth(int val) {
+		xColumnWidth = val;
+		put(s -> s.set_xColumnWidth(val));
+	}
+	@Override
+	public void set_yLineStep(int val) {
+		yLineStep = val;
+		put(s -> s.set_yLineStep(val));
+	}
+	@Override
+	public void set_defaultBendingPointAbsoluteOffsetY(int val) {
+		defaultBendingPointAbsoluteOffsetY = val;
+		put(s -> s.set_defaultBendingPointAbsoluteOffsetY(val));
+	}
+	@Override
+	public void set_defaultNodeWidth(int val) {
+		defaultNodeWidth = val;
+		put(s -> s.set_defaultNodeWidth(val));
+	}
+	@Override
+	public void set_defaultNodeHeight(int val) {
+		defaultNodeHeight = val;
+		put(s -> s.set_defaultNodeHeight(val));
+	}
+	@Override
+	public void set_defaultNodeColour(int val) {
+		defaultNodeColour = val;
+		put(s -> s.set_defaultNodeColour(val));
+	}
+	// -----------------------------------------------------------------------------
+
+	@Override
+	public void addNode(int id, String label, int colorRGB, int x, int y) {
+		put(s -> s.addNode(id, label,colorRGB, x,y));
+	}
+
+	@Override
+	public void addNode(int id, String label, int colorRGB, int x, int y, int width, int height) {
+		put(s -> s.addNode(id, label,colorRGB, x,y, width,height));
+	}
+
+	@Override
+	public void addStraightLine(int fromId, int toId) {
+		put(s -> s.addStraightLine(fromId, toId));
+	}
+
+	@Override
+	public void addBendedLine(int fromId, int toId, int toX, int toY) {
+		put(s -> s.addBendedLine(fromId, toId, toX,toY));
+	}
+
+	@Override
+	public void addBendedLine(int fromId, int toId, int toX, int toY, int bendingOffsetY) {
+		put(s -> s.addBendedLine(fromId, toId, toX,toY, bendingOffsetY));
+	}
+
+	@Override
+	public void addNodes(int[] ids, String[] labels, int[] colorsRGB, int[] xs, int[] ys, int count) {
+		final int[] i = Arrays.copyOf(ids, count);
+		final String[] l = Arrays.copyOf(labels, count);
+		final int[] c = Arrays.copyOf(colorsRGB, count);
+		final int[] x = Arrays.copyOf(xs, count);
+		final int[] y = Arrays.copyOf(ys, count);
+		put(s -> s.addNodes(i, l, c, x, y, count));
+	}
+
+	@Override
+	public void addNodes(int[] ids, String[] labels, int[] colorsRGB, int[] xs, int[] ys, int[] timepoints, int count) {
+		final int[] i = Arrays.copyOf(ids, count);
+		final String[] l = Arrays.copyOf(labels, count);
+		final int[] c = Arrays.copyOf(colorsRGB, count);
+		final int[] x = Arrays.copyOf(xs, count);
+		final int[] y = Arrays.copyOf(ys, count);
+		final int[] t = Arrays.copyOf(timepoints, count);
+		put(s -> s.addNodes(i, l, c, x, y, t, count));
+	}
+
+	@Override
+	public void addStraightLines(int[] fromIds, int[] toIds, int count) {
+		final int[] f = Arrays.copyOf(fromIds, count);
+		final int[] t = Arrays.copyOf(toIds, count);
+		put(s -> s.addStraightLines(f, t, count));
+	}
+
+	@Override
+	public void addBendedLines(int[] fromIds, int[] toIds, int[] toXs, int[] toYs, int count) {
+		final int[] f = Arrays.copyOf(fromIds, count);
+		final int[] t = Arrays.copyOf(toIds, count);
+		final int[] x = Arrays.copyOf(toXs, count);
+		final int[] y = Arrays.copyOf(toYs, count);
+		put(s -> s.addBendedLines(f, t, x, y, count));
+	}
+
+	@Override
+	public void startTree(int rootId, String rootLabel) {
+		put(s -> s.startTree(rootId, rootLabel));
+	}
+
+	@Override
+	public void finishTree() {
+		put(GraphExportableV2::finishTree);
+	}
+	// -----------------------------------------------------------------------------
+
+	@Override
+	public void addNode(String id, String label, int colorRGB, int x, int y) {
+		put(s -> s.addNode(id, label,colorRGB, x,y));
+	}
+
+	@Override
+	public void addNode(String id, String label, int colorRGB, int x, int y, int width, int height) {
+		put(s -> s.addNode(id, label,colorRGB, x,y, width,height));
+	}
+
+	@Override
+	public void addStraightLine(String fromId, String toId) {
+		put(s -> s.addStraightLine(fromId, toId));
+	}
+
+	@Override
+	public void addStraightLineConnectedVertex(String parentNodeID, String newNodeID, String label, int colorRGB, int x, int y) {
+		put(s -> s.addStraightLineConnectedVertex(parentNodeID, newNodeID, label,colorRGB, x,y));
+	}
+
+	@Override
+	public void addBendedLine(String fromId, String toId, int toX, int toY) {
+		put(s -> s.addBendedLine(fromId, toId, toX,toY));
+	}
+
+	@Override
+	public void addBendedLine(String fromId, String toId, int toX, int toY, int bendingOffsetY) {
+		put(s -> s.addBendedLine(fromId, toId, toX,toY, bendingOffsetY));
+	}
+
+	@Override
+	public void addBendedLineConnectedVertex(String parentNodeID, String newNodeID, String label, int colorRGB, int x, int y) {
+		put(s -> s.addBendedLineConnectedVertex(parentNodeID, newNodeID, label,colorRGB, x,y));
+	}
+}
@@ -0,0 +1,163 @@
+/*-
+ * #%L
+ * Online Mastodon Exports
+ * %%
+ * Copyright (C) 2021 - 2024 Vladimír Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cz.it4i.ulman.transfers.graphexport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the file written with the BinaryLineageWriter: the file is memory-mapped and the
+ * columns are accessed directly in it, nothing is parsed or copied when opening it. The
+ * nodes and edges are addressed with their indices, 0 to getNoOfNodes()-1 and 0 to
+ * getNoOfEdges()-1, respectively. Files of up to 2 GB are supported.
+ */
+public class BinaryLineageReader implements Closeable
+{
+	public BinaryLineageReader(final Path file)
+	throws IOException
+	{
+		try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (fc.size() > Integer.MAX_VALUE)
+				throw new IOException("File "+file+" is too large to be mapped at once.");
+			data = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+		}
+		data.order(ByteOrder.LITTLE_ENDIAN);
+
+		if (data.capacity() < HEADER_SIZE || data.getInt(0) != BinaryLineageWriter.MAGIC)
+			throw new IOException("File "+file+" is not a binary lineage.");
+		if (data.getInt(4) != BinaryLineageWriter.VERSION)
+			throw new IOException("File "+file+" is of unsupported version "+data.getInt(4)+".");
+		noOfNodes = data.getInt(8);
+		noOfEdges = data.getInt(12);
+		noOfStrings = data.getInt(16);
+		final int stringBytes = data.getInt(20);
+
+		//the header tells how long the file must be, check it before any column is mapped
+		if (noOfNodes < 0 || noOfEdges < 0 || noOfStrings < 0 || stringBytes < 0)
+			throw new IOException("File "+file+" has a corrupted header.");
+		final long expectedSize = HEADER_SIZE
+				+ 4L*(noOfStrings+1L)
+				+ stringBytes + (4 - stringBytes % 4) % 4
+				+ 4L*NODE_COLUMNS*noOfNodes
+				+ 4L*EDGE_COLUMNS*noOfEdges;
+		if (expectedSize > data.capacity())
+			throw new IOException("File "+file+" is truncated, it has "+data.capacity()
+					+" bytes but "+expectedSize+" bytes are expected.");
+
+		int pos = HEADER_SIZE;
+		stringOffsets = column(pos, noOfStrings+1);
+		pos += 4*(noOfStrings+1);
+		stringsStart = pos;
+		pos += stringBytes + (4 - stringBytes % 4) % 4;
+
+		ids = column(pos, noOfNodes);        pos += 4*noOfNodes;
+		xs = column(pos, noOfNodes);         pos += 4*noOfNodes;
+		ys = column(pos, noOfNodes);         pos += 4*noOfNodes;
+		timepoints = column(pos, noOfNodes); pos += 4*noOfNodes;
+		colors = column(pos, noOfNodes);     pos += 4*noOfNodes;
+		labels = column(pos, noOfNodes);     pos += 4*noOfNodes;
+		parents = column(pos, noOfNodes);    pos += 4*noOfNodes;
+
+		edgeFrom = column(pos, noOfEdges);   pos += 4*noOfEdges;
+		edgeTo = column(pos, noOfEdges);     pos += 4*noOfEdges;
+		bendXs = column(pos, noOfEdges);     pos += 4*noOfEdges;
+		bendYs = column(pos, noOfEdges);
+	}
+
+	/** magic, version, no. of nodes, edges, strings, and bytes of the strings */
+	static final int HEADER_SIZE = 24;
+	/** ids, xs, ys, timepoints, colors, labels, parents */
+	static final int NODE_COLUMNS = 7;
+	/** from, to, bendXs, bendYs */
+	static final int EDGE_COLUMNS = 4;
+
+	private IntBuffer column(final int position, final int length)
+	{
+		final ByteBuffer b = data.duplicate();
+		b.position(position).limit(position + 4*length);
+		return b.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+	}
+
+	public int getNoOfNodes() { return noOfNodes; }
+	public int getNoOfEdges() { return noOfEdges; }
+
+	public int getNodeId(final int node) { return ids.get(node); }
+	public int getX(final int node) { return xs.get(node); }
+	public int getY(final int node) { return ys.get(node); }
+	public int getTimepoint(final int node) { return timepoints.get(node); }
+	public int getColor(final int node) { return colors.get(node); }
+	/** returns the index of the mother node, or -1 for roots */
+	public int getParent(final int node) { return parents.get(node); }
+
+	public String getLabel(final int node) {
+		return getString(labels.get(node));
+	}
+
+	public int getNoOfStrings() { return noOfStrings; }
+
+	public String getString(final int index) {
+		final int from = stringOffsets.get(index);
+		final int till = stringOffsets.get(index+1);
+		final byte[] bytes = new byte[till-from];
+		final ByteBuffer b = data.duplicate();
+		b.position(stringsStart + from);
+		b.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/** returns the index of the node where the edge starts */
+	public int getEdgeFrom(final int edge) { return edgeFrom.get(edge); }
+	/** returns the index of the node where the edge ends */
+	public int getEdgeTo(final int edge) { return edgeTo.get(edge); }
+	public boolean isEdgeBended(final int edge) { return bendXs.get(edge) != BinaryLineageWriter.NO_BENDING; }
+	public int getEdgeBendX(final int edge) { return bendXs.get(edge); }
+	public int getEdgeBendY(final int edge) { return bendYs.get(edge); }
+
+	/** the mapping is released by the GC, this only drops the references to it */
+	@Override
+	public void close()
+	{
+		data = null;
+	}
+
+	private MappedByteBuffer data;
+	private final int noOfNodes, noOfEdges, noOfStrings;
+	private final int stringsStart;
+	private final IntBuffer stringOffsets;
+	private final IntBuffer ids, xs, ys, timepoints, colors, labels, parents;
+	private final IntBuffer edgeFrom, edgeTo, bendXs, bendYs;
+}
@@ -0,0 +1,372 @@
+/*-
+ * #%L
+ * Online Mastodon Exports
+ * %%
+ * Copyright (C) 2021 - 2024 Vladimír Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cz.it4i.ulman.transfers.graphexport;
+
+import org.mastodon.RefPool;
+import org.mastodon.mamut.ProjectModel;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.scijava.log.LogService;
+import org.scijava.log.StderrLogService;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the exported lineage into columns, and writes them into a compact binary file
+ * on close(), which can be memory-mapped with the BinaryLineageReader. The file consists of
+ * (all numbers are little-endian ints):
+ *
+ * - header: MAGIC, VERSION, number of nodes N, number of edges E, number of strings S,
+ *   and the length B of the strings table in bytes
+ * - strings table: S+1 offsets into the following B bytes of UTF-8 encoded strings,
+ *   the blob is padded with zeros to a multiple of 4 bytes
+ * - node columns, each of N items: IDs, x, y, timepoints, colors, labels (indices into
+ *   the strings table), and parents (node index of the mother node, or -1)
+ * - edge columns, each of E items: from (node index), to (node index), and the bending
+ *   point x and y (both NO_BENDING for straight lines)
+ *
+ * The node IDs are the IDs given to addNode(), which are the spots' pool indices for
+ * lineages, String IDs that are not numbers get negative IDs. The timepoints are -1 if
+ * not known (e.g. when no project is given or for the String IDs).
+ */
+public class BinaryLineageWriter extends AbstractGraphExporter implements GraphExportableV2
+{
+	public static final int MAGIC = 0x4E494C4D; //"MLIN" when read as bytes
+	public static final int VERSION = 1;
+	public static final int NO_BENDING = Integer.MIN_VALUE;
+
+	private final String outputFile;
+	final LogService logger;
+
+	private final ModelGraph graph;
+	private final RefPool<Spot> verticesPool; //or null if timepoints are not wanted
+	private final Spot spot;
+
+	public BinaryLineageWriter(final String outputFile, final ProjectModel mastodonProjectModel)
+	{
+		this(outputFile, mastodonProjectModel, new StderrLogService());
+	}
+
+	/** the project is only used to learn the timepoints of the nodes, and can be null */
+	public BinaryLineageWriter(final String outputFile, final ProjectModel mastodonProjectModel,
+	                           final LogService logService)
+	{
+		this.outputFile = outputFile;
+		this.logger = logService;
+		if (mastodonProjectModel != null) {
+			graph = mastodonProjectModel.getModel().getGraph();
+			verticesPool = graph.vertices().getRefPool();
+			spot = graph.vertices().createRef();
+		} else {
+			graph = null;
+			verticesPool = null;
+			spot = null;
+		}
+	}
+
+	// -----------------------------------------------------------------------------
+	//the node columns, and the map from node IDs to node indices
+	private int noOfNodes = 0;
+	private int[] ids = new int[1024], xs = new int[1024], ys = new int[1024];
+	private int[] timepoints = new int[1024], colors = new int[1024], labels = new int[1024];
+	private int[] rowOfNonNegativeId = new int[0];
+	private final Map<Integer,Integer> rowOfNegativeId = new HashMap<>();
+
+	//the edge columns
+	private int noOfEdges = 0;
+	private int[] edgeFrom = new int[1024], edgeTo = new int[1024], bendXs = new int[1024], bendYs = new int[1024];
+
+	//the strings table
+	private final Map<String,Integer> stringIndices = new HashMap<>();
+	private final List<byte[]> strings = new ArrayList<>();
+
+	private final Map<String,Integer> negativeIdsOfStrings = new HashMap<>();
+
+	private int stringIndex(final String s) {
+		return stringIndices.computeIfAbsent(s == null ? "" : s, k -> {
+			strings.add(k.getBytes(StandardCharsets.UTF_8));
+			return strings.size()-1;
+		});
+	}
+
+	private int rowOf(final int id) {
+		if (id >= 0) return id < rowOfNonNegativeId.length ? rowOfNonNegativeId[id] : -1;
+		return rowOfNegativeId.getOrDefault(id, -1);
+	}
+
+	private int translateID(final String id) {
+		try {
+			return Integer.parseInt(id);
+		} catch (NumberFormatException e) {
+			return negativeIdsOfStrings.computeIfAbsent(id, k -> -1 - negativeIdsOfStrings.size());
+		}
+	}
+
+	/** only for the nodes that come without their timepoints, see addNodes() */
+	private int getTime(final int id) {
+		if (verticesPool == null || id < 0) return -1;
+		//NB: this may run in another thread than the caller's one, thus the own locking
+		graph.getLock().readLock().lock();
+		try {
+			return verticesPool.getObject(id, spot).getTimepoint();
+		} finally {
+			graph.getLock().readLock().unlock();
+		}
+	}
+	// -----------------------------------------------------------------------------
+
+	@Override
+	public void addNode(int id, String label, int colorRGB, int x, int y) {
+		addNode(id, label,colorRGB, x,y, defaultNodeWidth,defaultNodeHeight);
+	}
+
+	@Override
+	public void addNode(int id, String label, int colorRGB, int x, int y, int width, int height) {
+		addRow(id, label, colorRGB, x,y, getTime(id));
+	}
+
+	@Override
+	public void addNodes(int[] ids, String[] labels, int[] colorsRGB, int[] xs, int[] ys, int[] timepoints, int count) {
+		for (int i = 0; i < count; ++i) addRow(ids[i], labels[i], colorsRGB[i], xs[i],ys[i], timepoints[i]);
+	}
+
+	private void addRow(int id, String label, int colorRGB, int x, int y, int timepoint) {
+		if (noOfNodes == ids.length) {
+			final int newSize = 2*noOfNodes;
+			ids = Arrays.copyOf(ids, newSize);
+			xs = Arrays.copyOf(xs, newSize);
+			ys = Arrays.copyOf(ys, newSize);
+			timepoints = Arrays.copyOf(timepoints, newSize);
+			colors = Arrays.copyOf(colors, newSize);
+			labels = Arrays.copyOf(labels, newSize);
+		}
+		ids[noOfNodes] = id;
+		xs[noOfNodes] = x;
+		ys[noOfNodes] = y;
+		timepoints[noOfNodes] = timepoint;
+		colors[noOfNodes] = colorRGB;
+		labels[noOfNodes] = stringIndex(label);
+
+		if (id >= 0) {
+			if (id >= rowOfNonNegativeId.length) {
+				final int oldSize = rowOfNonNegativeId.length;
+				rowOfNonNegativeId = Arrays.copyOf(rowOfNonNegativeId, Math.max(id+1, 2*oldSize));
+				Arrays.fill(rowOfNonNegativeId, oldSize, rowOfNonNegativeId.length, -1);
+			}
+			rowOfNonNegativeId[id] = noOfNodes;
+		} else rowOfNegativeId.put(id, noOfNodes);
+		++noOfNodes;
+	}
+
+	@Override
+	public void addStraightLine(int fromId, int toId) {
+		addEdge(fromId, toId, NO_BENDING, NO_BENDING);
+	}
+
+	@Override
+	public void addBendedLine(int fromId, int toId, int toX, int toY) {
+		addBendedLine(fromId,toId, toX,toY, defaultBendingPointAbsoluteOffsetY);
+	}
+
+	@Override
+	public void addBendedLine(int fromId, int toId, int toX, int toY, int bendingOffsetY) {
+		addEdge(fromId, toId, toX+defaultNodeWidth/2, toY+bendingOffsetY);
+	}
+
+	private void addEdge(final int fromId, final int toId, final int bx, final int by) {
+		final int from = rowOf(fromId);
+		final int to = rowOf(toId);
+		if (from == -1 || to == -1) {
+			logger.warn("Skipping line between unknown nodes "+fromId+" and "+toId);
+			return;
+		}
+		if (noOfEdges == edgeFrom.length) {
+			final int newSize = 2*noOfEdges;
+			edgeFrom = Arrays.copyOf(edgeFrom, newSize);
+			edgeTo = Arrays.copyOf(edgeTo, newSize);
+			bendXs = Arrays.copyOf(bendXs, newSize);
+			bendYs = Arrays.copyOf(bendYs, newSize);
+		}
+		edgeFrom[noOfEdges] = from;
+		edgeTo[noOfEdges] = to;
+		bendXs[noOfEdges] = bx;
+		bendYs[noOfEdges] = by;
+		++noOfEdges;
+	}
+	// -----------------------------------------------------------------------------
+
+	@Override
+	public void addNode(String id, String label, int colorRGB, int x, int y) {
+		addNode(translateID(id), label,colorRGB, x,y);
+	}
+
+	@Override
+	public void addNode(String id, String label, int colorRGB, int x, int y, int width, int height) {
+		addNode(translateID(id), label,colorRGB, x,y, width,height);
+	}
+
+	@Override
+	public void addStraightLine(String fromId, String toId) {
+		addStraightLine(translateID(fromId), translateID(toId));
+	}
+
+	@Override
+	public void addStraightLineConnectedVertex(String parentNodeID, String newNodeID, String label, int colorRGB, int x, int y) {
+		addNode(newNodeID, label,colorRGB, x,y);
+		addStraightLine(parentNodeID, newNodeID);
+	}
+
+	@Override
+	public void addBendedLine(String fromId, String toId, int toX, int toY) {
+		addBendedLine(translateID(fromId), translateID(toId), toX,toY);
+	}
+
+	@Override
+	public void addBendedLine(String fromId, String toId, int toX, int toY, int bendingOffsetY) {
+		addBendedLine(translateID(fromId), translateID(toId), toX,toY, bendingOffsetY);
+	}
+
+	@Override
+	public void addBendedLineConnectedVertex(String parentNodeID, String newNodeID, String label, int colorRGB, int x, int y) {
+		addNode(newNodeID, label,colorRGB, x,y);
+		addBendedLine(parentNodeID, newNodeID, x,y);
+	}
+	// -----------------------------------------------------------------------------
+
+	boolean closed = false;
+
+	@Override
+	public void close()
+	{
+		if (closed) return;
+		closed = true;
+		if (spot != null) verticesPool.releaseRef(spot);
+
+		//the mother of every node is the source of the line that leads into it
+		final int[] parents = new int[noOfNodes];
+		Arrays.fill(parents, -1);
+		for (int e = 0; e < noOfEdges; ++e) parents[edgeTo[e]] = edgeFrom[e];
+
+		int stringBytes = 0;
+		for (byte[] s : strings) stringBytes += s.length;
+
+		try (FileChannel file = FileChannel.open(Paths.get(outputFile),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			final ByteBuffer b = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+			b.putInt(MAGIC).putInt(VERSION)
+				.putInt(noOfNodes).putInt(noOfEdges)
+				.putInt(strings.size()).putInt(stringBytes);
+
+			int offset = 0;
+			for (byte[] s : strings) {
+				putInt(file, b, offset);
+				offset += s.length;
+			}
+			putInt(file, b, offset);
+			for (byte[] s : strings) putBytes(file, b, s);
+			for (int pad = (4 - stringBytes % 4) % 4; pad > 0; --pad) putBytes(file, b, new byte[1]);
+
+			putInts(file, b, ids, noOfNodes);
+			putInts(file, b, xs, noOfNodes);
+			putInts(file, b, ys, noOfNodes);
+			putInts(file, b, timepoints, noOfNodes);
+			putInts(file, b, colors, noOfNodes);
+			putInts(file, b, labels, noOfNodes);
+			putInts(file, b, parents, noOfNodes);
+
+			putInts(file, b, edgeFrom, noOfEdges);
+			putInts(file, b, edgeTo, noOfEdges);
+			putInts(file, b, bendXs, noOfEdges);
+			putInts(file, b, bendYs, noOfEdges);
+			flush(file, b);
+			logger.info("Written "+noOfNodes+" nodes and "+noOfEdges+" edges into "+outputFile);
+		} catch (IOException e) {
+			logger.error("Cannot write into "+outputFile+": "+e.getMessage());
+		}
+
+		//release the columns
+		ids = xs = ys = timepoints = colors = labels = edgeFrom = edgeTo = bendXs = bendYs = new int[0];
+	}
+
+	public void finalize()
+	{
+		if (!closed) close();
+	}
+
+	private static void flush(final FileChannel file, final ByteBuffer b)
+	throws IOException
+	{
+		b.flip();
+		while (b.hasRemaining()) file.write(b);
+		b.clear();
+	}
+
+	private static void putInt(final FileChannel file, final ByteBuffer b, final int value)
+	throws IOException
+	{
+		if (b.remaining() < 4) flush(file, b);
+		b.putInt(value);
+	}
+
+	private static void putInts(final FileChannel file, final ByteBuffer b, final int[] values, final int count)
+	throws IOException
+	{
+		int i = 0;
+		while (i < count) {
+			if (b.remaining() < 4) flush(file, b);
+			final int len = Math.min(count - i, b.remaining() / 4);
+			b.asIntBuffer().put(values, i, len);
+			b.position(b.position() + 4*len);
+			i += len;
+		}
+	}
+
+	private static void putBytes(final FileChannel file, final ByteBuffer b, final byte[] bytes)
+	throws IOException
+	{
+		int i = 0;
+		while (i < bytes.length) {
+			if (!b.hasRemaining()) flush(file, b);
+			final int len = Math.min(bytes.length - i, b.remaining());
+			b.put(bytes, i, len);
+			i += len;
+		}
+	}
+}
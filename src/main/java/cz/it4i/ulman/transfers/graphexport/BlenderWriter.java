@@ -28,24 +28,26 @@
  */
 package cz.it4i.ulman.transfers.graphexport;
 
+import cz.it4i.ulman.transfers.BlenderSendingUtils;
 import cz.it4i.ulman.transfers.graphics.protocol.BucketsWithGraphics;
 import cz.it4i.ulman.transfers.graphics.EmptyIgnoringStreamObservers;
 import cz.it4i.ulman.transfers.graphics.protocol.ClientToServerGrpc;
-import io.grpc.ConnectivityState;
 import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
 import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import org.mastodon.RefPool;
 import org.mastodon.mamut.ProjectModel;
+import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
 import org.scijava.log.LogService;
 import org.scijava.log.StderrLogService;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
-public class BlenderWriter extends AbstractGraphExporter implements GraphExportable
+public class BlenderWriter extends AbstractGraphExporter implements GraphExportableV2
 {
 	// -----------------------------------------------------------------------------
 	public float lineRadius = 3.f;
@@ -53,10 +55,14 @@ public class BlenderWriter extends AbstractGraphExporter implements GraphExporta
 
 	private ClientToServerGrpc.ClientToServerStub commContinuous;
 	private ClientToServerGrpc.ClientToServerBlockingStub commBlocking;
-	private ManagedChannel channel;
+	private ManagedChannel channel;                             //if given by the caller
+	private BlenderSendingUtils.BlenderConnectionHandle connection; //if from the shared channels
 	private String url;
 	final LogService logger;
 
+	/** how long close() waits for the Blender to confirm that it has received all data */
+	public static final int ACK_TIMEOUT_SECONDS = 60;
+
 	public BlenderWriter(final String hostAndPort,
 	                     final String clientName,
 	                     final ProjectModel mastodonProjectModel)
@@ -64,42 +70,79 @@ public class BlenderWriter extends AbstractGraphExporter implements GraphExporta
 		this(hostAndPort, clientName, mastodonProjectModel, new StderrLogService());
 	}
 
+	/** the connection is taken from (and returned back to) the shared channels of the
+	 *  BlenderSendingUtils, so repeated exports to the same Blender re-use a warm channel;
+	 *  the channel is shut down after it has not been used for a while */
 	public BlenderWriter(final String hostAndPort,
 	                     final String clientName,
 	                     final ProjectModel mastodonProjectModel,
 	                     LogService logService)
 	{
-		this(ManagedChannelBuilder.forTarget(hostAndPort).usePlaintext().build(), clientName, mastodonProjectModel, logService);
-		url = hostAndPort;
+		this(BlenderSendingUtils.connectToBlender(hostAndPort, clientName), null,
+				clientName, mastodonProjectModel, logService);
 	}
 
+	ModelGraph graph;
 	RefPool<Spot> verticesPool;
 	Spot spot;
 
+	/** the given channel is shut down in close() */
 	public BlenderWriter(final ManagedChannel someExistingChannel,
 	                     final String clientName,
 	                     final ProjectModel mastodonProjectModel,
 	                     LogService logService)
+	{
+		this(null, someExistingChannel, clientName, mastodonProjectModel, logService);
+	}
+
+	private BlenderWriter(final BlenderSendingUtils.BlenderConnectionHandle sharedConnection,
+	                      final ManagedChannel ownChannel,
+	                      final String clientName,
+	                      final ProjectModel mastodonProjectModel,
+	                      LogService logService)
 	{
 		logger = logService;
-		spot = mastodonProjectModel.getModel().getGraph().vertices().createRef();
-		verticesPool = mastodonProjectModel.getModel().getGraph().vertices().getRefPool();
+		graph = mastodonProjectModel.getModel().getGraph();
+		spot = graph.vertices().createRef();
+		verticesPool = graph.vertices().getRefPool();
 
 		try {
-			channel = someExistingChannel;
-			commContinuous = ClientToServerGrpc.newStub(channel);
-			commBlocking = ClientToServerGrpc.newBlockingStub(channel);
+			connection = sharedConnection;
+			channel = ownChannel;
+			if (connection != null) {
+				url = connection.url;
+				commContinuous = connection.commContinuous;
+				commBlocking = connection.commBlocking;
+			} else {
+				commContinuous = ClientToServerGrpc.newStub(channel);
+				commBlocking = ClientToServerGrpc.newBlockingStub(channel);
+			}
 			isValid = true;
 
 			setClientName(clientName);
 			introduceClient();
-			mainDataStream = commContinuous.replaceGraphics(new EmptyIgnoringStreamObservers());
+			mainDataStream = commContinuous.replaceGraphics(serverAck);
 		} catch (StatusRuntimeException e) {
 			logger.warn("RPC client-side failed while accessing " + url
 					+ ", details follow:\n" + e.getMessage());
 		}
 	}
 
+	/** learns when the Blender has received (and confirmed) the whole data stream */
+	private final CountDownLatch serverAckLatch = new CountDownLatch(1);
+	private final StreamObserver<BucketsWithGraphics.Empty> serverAck = new EmptyIgnoringStreamObservers() {
+		@Override
+		public void onError(Throwable throwable) {
+			logger.warn("Blender at "+url+" reported: "+throwable.getMessage());
+			serverAckLatch.countDown();
+		}
+
+		@Override
+		public void onCompleted() {
+			serverAckLatch.countDown();
+		}
+	};
+
 	//private String currentSourceName = "Mastodon lineage trees";
 	private final BucketsWithGraphics.TimeSpan.Builder tSpanBuilder = BucketsWithGraphics.TimeSpan.newBuilder();
 	private BucketsWithGraphics.ClientIdentification currentCid;
@@ -116,37 +159,32 @@ public class BlenderWriter extends AbstractGraphExporter implements GraphExporta
 		logger.info("connection to Blender is closing...");
 		verticesPool.releaseRef(spot);
 		try {
-			if (nodeBuilder != null && mainDataStream != null) {
-				mainDataStream.onNext( nodeBuilder.build() );
+			if (mainDataStream != null) {
+				//NB: the per-tree objects are already sent, don't overwrite the base one with nothing
+				if (nodeBuilder != null && (!anyTreeSent || hasGraphics(nodeBuilder)))
+					mainDataStream.onNext( nodeBuilder.build() );
 				mainDataStream.onCompleted();
 				logger.info("...sent last batch");
 			}
 
-			//first, make sure the channel describe itself as "READY"
-			//logger.info("state: "+channel.getState(false).name());
-			int wantStillWaitTime = 20;
-			final int checkingPeriod = 2;
-			while (channel.getState(false) != ConnectivityState.READY && wantStillWaitTime > 0) {
-				wantStillWaitTime -= checkingPeriod;
-				Thread.sleep(checkingPeriod * 1000); //seconds -> milis
-			}
-			//but even when it claims "READY", it still needs some grace time to finish any commencing transfers;
-			//request it to stop whenever it can, then keep asking when it's done
-			channel.shutdown();
-			wantStillWaitTime = 20;
-			while (!channel.isTerminated() && wantStillWaitTime > 0) {
-				wantStillWaitTime -= checkingPeriod;
-				Thread.sleep(checkingPeriod * 1000); //seconds -> milis
-			}
-			//last 10secs extra if it is still not closed...
-			channel.awaitTermination(10, TimeUnit.SECONDS);
+			//no sleeping, just until the Blender confirms it has everything
+			if (mainDataStream != null && !serverAckLatch.await(ACK_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+				logger.warn("Blender at "+url+" has not confirmed the reception of the data yet");
+
+			//the own channel is shut down as before
+			if (connection == null && channel != null) BlenderSendingUtils.closeChannel(channel);
 		}
 		catch (InterruptedException e) {
 			/* don't care that waiting was interrupted */
 		} catch (StatusRuntimeException e) {
 			logger.error("Mastodon network sender failed for "+url
 				+", details follow:\n"+e.getMessage());
+		} finally {
+			//the shared channel is kept open (and warm) for a while for the next exports,
+			//and is shut down by the BlenderSendingUtils if none comes
+			if (connection != null) connection.closeConnection();
 		}
+		releaseNodes();
 		isClosed = true;
 	}
 
@@ -184,13 +222,51 @@ public class BlenderWriter extends AbstractGraphExporter implements GraphExporta
 		}
 
 		//new building
-		nodeBuilder = BucketsWithGraphics.BatchOfGraphics.newBuilder()
+		baseDataName = nodeName;
+		baseDataID = nodeID;
+		nodeBuilder = newBatch(nodeName, nodeID);
+	}
+
+	BucketsWithGraphics.BatchOfGraphics.Builder newBatch(final String nodeName, final int nodeID)
+	{
+		return BucketsWithGraphics.BatchOfGraphics.newBuilder()
 					.setClientID( currentCid )
 					.setCollectionName( currentCollectionName )
 					.setDataName( nodeName )
 					.setDataID( nodeID );
 	}
 
+	static boolean hasGraphics(final BucketsWithGraphics.BatchOfGraphics.Builder batch)
+	{
+		return batch.getSpheresCount() > 0 || batch.getLinesCount() > 0 || batch.getVectorsCount() > 0;
+	}
+
+	/** the name and ID given in startSendingGraphics(), every tree becomes own
+	 *  Blender object whose name is derived from the name of the base one */
+	String baseDataName = "";
+	int baseDataID = 0;
+	boolean anyTreeSent = false;
+
+	/** every tree is sent as soon as it is complete, and as own Blender object */
+	@Override
+	public void startTree(final int rootId, final String rootLabel)
+	{
+		if (!isValid) return;
+		//whatever has been collected so far (e.g. debug graphics) stays in the base object
+		if (nodeBuilder != null && mainDataStream != null && hasGraphics(nodeBuilder))
+			mainDataStream.onNext( nodeBuilder.build() );
+		nodeBuilder = newBatch(baseDataName+" "+rootLabel, rootId);
+	}
+
+	@Override
+	public void finishTree()
+	{
+		if (!isValid || nodeBuilder == null) return;
+		if (mainDataStream != null) mainDataStream.onNext( nodeBuilder.build() );
+		anyTreeSent = true;
+		nodeBuilder = newBatch(baseDataName, baseDataID);
+	}
+
 	public void sendMessage(final String message)
 	{
 		final BucketsWithGraphics.TextMessage m
@@ -207,54 +283,107 @@ public class BlenderWriter extends AbstractGraphExporter implements GraphExporta
 	}
 	// -----------------------------------------------------------------------------
 
-	HashMap<Integer,Float> xs = new HashMap<>(10000);
-	HashMap<Integer,Float> ys = new HashMap<>(10000);
-	HashMap<Integer,Float> ts = new HashMap<>(10000);
-	float memorizeAndReturn(int id, float value, final HashMap<Integer,Float> memory) {
-		memory.put(id,value);
-		return value;
-	}
-
-	//colors...
-	HashMap<Integer,Integer> cs = new HashMap<>(10000);
-
-	HashMap<String,Integer> ids = new HashMap<>(10000);
-	int nextAvailId = 1;
-	int translateID(final String string_id) {
-		int int_id = ids.getOrDefault(string_id, -1);
-		if (int_id == -1) {
-			int_id = nextAvailId;
-			nextAvailId++;
-			ids.put(string_id, int_id);
+	//per node (its ID is a vertices pool index): position, time and color; the arrays only grow
+	float[] xs = new float[0];
+	float[] ys = new float[0];
+	float[] ts = new float[0];
+	int[] cs = new int[0];
+	BitSet knownNodes = new BitSet();
+
+	void memorize(final int id, final float x, final float y, final float time, final int color) {
+		if (id >= xs.length) {
+			final int newSize = Math.max(id+1, Math.max(1024, xs.length + (xs.length >> 1)));
+			xs = Arrays.copyOf(xs, newSize);
+			ys = Arrays.copyOf(ys, newSize);
+			ts = Arrays.copyOf(ts, newSize);
+			cs = Arrays.copyOf(cs, newSize);
 		}
-		return int_id;
+		xs[id] = x;
+		ys[id] = y;
+		ts[id] = time;
+		cs[id] = color;
+		knownNodes.set(id);
+	}
+
+	float timeOf(final int id) {
+		return knownNodes.get(id) ? ts[id] : 0.f;
+	}
+
+	int colorOf(final int id) {
+		return knownNodes.get(id) ? cs[id] : 0x00FF00FF;
 	}
 
-	float getTime(final String string_id) {
+	/** forgets all memorized nodes */
+	void releaseNodes() {
+		xs = new float[0];
+		ys = new float[0];
+		ts = new float[0];
+		cs = new int[0];
+		knownNodes = new BitSet();
+	}
+
+	/** only for the nodes that come without their timepoints, see addNodes() */
+	float getTime(final int poolIdx) {
 		//NB: benefiting from the knowledge that the provided IDs are in fact vertices pool indices...
-		int poolIdx = Integer.parseInt(string_id);
-		verticesPool.getObject(poolIdx,spot);
-		return spot.getTimepoint();
+		//NB: this may run in another thread than the caller's one, thus the own locking
+		graph.getLock().readLock().lock();
+		try {
+			verticesPool.getObject(poolIdx,spot);
+			return spot.getTimepoint();
+		} finally {
+			graph.getLock().readLock().unlock();
+		}
 	}
 	// -----------------------------------------------------------------------------
 
+	//NB: the String IDs are expected to be the vertices pool indices too
 	@Override
 	public void addNode(String id, String label, int colorRGB, int x, int y) {
-		addNode(id,label,colorRGB,x,y,defaultNodeWidth,defaultNodeHeight);
+		addNode(Integer.parseInt(id),label,colorRGB,x,y,defaultNodeWidth,defaultNodeHeight);
 	}
 
 	@Override
 	public void addNode(String id, String label, int colorRGB, int x, int y, int width, int height) {
+		addNode(Integer.parseInt(id),label,colorRGB,x,y,width,height);
+	}
+
+	@Override
+	public void addStraightLine(String fromId, String toId) {
+		addStraightLine(Integer.parseInt(fromId), Integer.parseInt(toId));
+	}
+
+	@Override
+	public void addBendedLine(String fromId, String toId, int toX, int toY) {
+		addBendedLine(Integer.parseInt(fromId),Integer.parseInt(toId), toX,toY, defaultBendingPointAbsoluteOffsetY);
+	}
+
+	@Override
+	public void addBendedLine(String fromId, String toId, int toX, int toY, int bendingOffsetY) {
+		addBendedLine(Integer.parseInt(fromId),Integer.parseInt(toId), toX,toY, bendingOffsetY);
+	}
+	// -----------------------------------------------------------------------------
+
+	@Override
+	public void addNode(int id, String label, int colorRGB, int x, int y) {
+		addNode(id,label,colorRGB,x,y,defaultNodeWidth,defaultNodeHeight);
+	}
+
+	@Override
+	public void addNode(int id, String label, int colorRGB, int x, int y, int width, int height) {
+		if (!isValid) return;
+		addSphere(id, colorRGB, x,y, width, getTime(id));
+	}
+
+	@Override
+	public void addNodes(int[] ids, String[] labels, int[] colorsRGB, int[] xs, int[] ys, int[] timepoints, int count) {
 		if (!isValid) return;
+		for (int i = 0; i < count; ++i)
+			addSphere(ids[i], colorsRGB[i], xs[i],ys[i], defaultNodeWidth, timepoints[i]);
+	}
 
+	private void addSphere(int id, int colorRGB, int x, int y, int width, float time) {
 		y *= -1;
-		final int i = translateID(id);
-		memorizeAndReturn(i, x, xs);
-		memorizeAndReturn(i, y, ys);
-
-		float time = getTime(id);
-		memorizeAndReturn(i, time, ts);
-		cs.put(i, colorRGB);
+		memorize(id, x,y, time, colorRGB);
 
 		BucketsWithGraphics.SphereParameters.Builder s = BucketsWithGraphics.SphereParameters.newBuilder();
 		s.setCentre( BucketsWithGraphics.Vector3D.newBuilder()
@@ -267,19 +396,19 @@ public class BlenderWriter extends AbstractGraphExporter implements GraphExporta
 	}
 
 	@Override
-	public void addStraightLine(String fromId, String toId) {
+	public void addStraightLine(int fromId, int toId) {
 		if (!isValid) return;
 
-		final int fi = translateID(fromId);
-		final int ti = translateID(toId);
-		final float time = ts.getOrDefault(ti,0.f);
-		final int color = cs.getOrDefault(ti, 0x00FF00FF);
+		final int fi = fromId;
+		final int ti = toId;
+		final float time = timeOf(ti);
+		final int color = colorOf(ti);
 
 		BucketsWithGraphics.LineParameters.Builder l = BucketsWithGraphics.LineParameters.newBuilder();
 		l.setStartPos( BucketsWithGraphics.Vector3D.newBuilder()
-				.setX(xs.get(fi)).setY(z_coord).setZ(ys.get(fi)).build() );
+				.setX(xs[fi]).setY(z_coord).setZ(ys[fi]).build() );
 		l.setEndPos( BucketsWithGraphics.Vector3D.newBuilder()
-				.setX(xs.get(ti)).setY(z_coord).setZ(ys.get(ti)).build() );
+				.setX(xs[ti]).setY(z_coord).setZ(ys[ti]).build() );
 		l.setSpan( tSpanBuilder.setTimeFrom(time-0.5f).setTimeTill(1000000).build() );
 		l.setRadius(lineRadius);
 		l.setColorXRGB(color);
@@ -294,33 +423,33 @@ public class BlenderWriter extends AbstractGraphExporter implements GraphExporta
 	}
 
 	@Override
-	public void addBendedLine(String fromId, String toId, int toX, int toY) {
+	public void addBendedLine(int fromId, int toId, int toX, int toY) {
 		addBendedLine(fromId,toId, toX,toY, defaultBendingPointAbsoluteOffsetY);
 	}
 
 	@Override
-	public void addBendedLine(String fromId, String toId, int toX, int toY, int bendingOffsetY) {
+	public void addBendedLine(int fromId, int toId, int toX, int toY, int bendingOffsetY) {
 		if (!isValid) return;
 
-		final int fid = translateID(fromId);
-		final int tid = translateID(toId);
-		final float time = ts.getOrDefault(tid,0.f);
-		final int color = cs.getOrDefault(tid, 0x00FF00FF);
+		final int fid = fromId;
+		final int tid = toId;
+		final float time = timeOf(tid);
+		final int color = colorOf(tid);
 
 		BucketsWithGraphics.LineParameters.Builder l = BucketsWithGraphics.LineParameters.newBuilder();
 		l.setStartPos( BucketsWithGraphics.Vector3D.newBuilder()
-				.setX(xs.get(fid)).setY(z_coord).setZ(ys.get(fid)).build() );
+				.setX(xs[fid]).setY(z_coord).setZ(ys[fid]).build() );
 		l.setEndPos( BucketsWithGraphics.Vector3D.newBuilder()
-				.setX(xs.get(tid)).setY(z_coord).setZ(ys.get(tid)-bendingOffsetY).build() );
+				.setX(xs[tid]).setY(z_coord).setZ(ys[tid]-bendingOffsetY).build() );
 		l.setSpan( tSpanBuilder.setTimeFrom(time-0.5f).setTimeTill(1000000).build() );
 		l.setRadius(lineRadius);
 		l.setColorXRGB(color);
 		nodeBuilder.addLines(l);
 
 		l.setStartPos( BucketsWithGraphics.Vector3D.newBuilder()
-				.setX(xs.get(tid)).setY(z_coord).setZ(ys.get(tid)-bendingOffsetY).build() );
+				.setX(xs[tid]).setY(z_coord).setZ(ys[tid]-bendingOffsetY).build() );
 		l.setEndPos( BucketsWithGraphics.Vector3D.newBuilder()
-				.setX(xs.get(tid)).setY(z_coord).setZ(ys.get(tid)).build() );
+				.setX(xs[tid]).setY(z_coord).setZ(ys[tid]).build() );
 		nodeBuilder.addLines(l);
 	}
 
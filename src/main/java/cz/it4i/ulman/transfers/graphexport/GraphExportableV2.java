@@ -0,0 +1,118 @@
+/*-
+ * #%L
+ * Online Mastodon Exports
+ * %%
+ * Copyright (C) 2021 - 2024 Vladimír Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cz.it4i.ulman.transfers.graphexport;
+
+/**
+ * The GraphExportable whose nodes are identified with ints (typically the spots' pool
+ * indices) instead of Strings, which saves the exporters from formatting, hashing and
+ * parsing of the IDs. Besides, it offers bulk variants that take whole arrays of nodes
+ * and lines, e.g. one lineage tree at once.
+ *
+ * Implementations of the String-based GraphExportable can be used via of().
+ */
+public interface GraphExportableV2 extends GraphExportable
+{
+	/** adds node whose color should have a meaning
+	    when read in hexadecimal 0xRRGGBB format; default
+	    width and height of the node graphics shall be used */
+	void addNode(final int id,
+	             final String label, final int colorRGB,
+	             final int x, final int y);
+
+	/** adds node whose color should have a meaning
+	    when read in hexadecimal 0xRRGGBB format */
+	void addNode(final int id,
+	             final String label, final int colorRGB,
+	             final int x, final int y,
+	             final int width, final int height);
+
+	void addStraightLine(final int fromId, final int toId);
+
+	/** adds bended line where the bending shall happen at
+	    [toX + defaultNodeWidth/2 , toY + defaultBendingPointAbsoluteOffsetY ] */
+	void addBendedLine(final int fromId, final int toId,
+	                   final int toX, final int toY);
+
+	/** adds bended line where the bending shall happen at
+	    [toX + defaultNodeWidth/2 , toY + bendingOffsetY ] */
+	void addBendedLine(final int fromId, final int toId,
+	                   final int toX, final int toY, final int bendingOffsetY);
+
+	/** adds the first 'count' nodes from the arrays, default width and height
+	    of the node graphics shall be used; the arrays may be longer and re-used */
+	default void addNodes(final int[] ids,
+	                      final String[] labels, final int[] colorsRGB,
+	                      final int[] xs, final int[] ys,
+	                      final int count)
+	{
+		for (int i = 0; i < count; ++i) addNode(ids[i], labels[i],colorsRGB[i], xs[i],ys[i]);
+	}
+
+	/** same as addNodes() above, plus the timepoints of the nodes (for the exporters that
+	    show them); the caller knows the timepoints safely, unlike the exporter, which may be
+	    working later (from another thread) when the nodes may not exist anymore;
+	    the default implementation ignores the timepoints */
+	default void addNodes(final int[] ids,
+	                      final String[] labels, final int[] colorsRGB,
+	                      final int[] xs, final int[] ys, final int[] timepoints,
+	                      final int count)
+	{
+		addNodes(ids, labels,colorsRGB, xs,ys, count);
+	}
+
+	/** adds the first 'count' straight lines from the arrays */
+	default void addStraightLines(final int[] fromIds, final int[] toIds,
+	                              final int count)
+	{
+		for (int i = 0; i < count; ++i) addStraightLine(fromIds[i], toIds[i]);
+	}
+
+	/** adds the first 'count' bended lines from the arrays, with the default bending point */
+	default void addBendedLines(final int[] fromIds, final int[] toIds,
+	                            final int[] toXs, final int[] toYs,
+	                            final int count)
+	{
+		for (int i = 0; i < count; ++i) addBendedLine(fromIds[i], toIds[i], toXs[i],toYs[i]);
+	}
+
+	/** optional, marks the beginning of a (lineage) tree whose nodes and lines
+	    follow until finishTree(); exporters may use it to group and send the
+	    graphics per tree, whether to leave empty or implement depends on them */
+	default void startTree(final int rootId, final String rootLabel) {}
+
+	/** optional, marks the end of the tree started with startTree() */
+	default void finishTree() {}
+
+	/** returns the given exporter if it already is GraphExportableV2,
+	    otherwise wraps it to translate the int IDs into Strings */
+	static GraphExportableV2 of(final GraphExportable ge)
+	{
+		return ge instanceof GraphExportableV2 ? (GraphExportableV2)ge : new StringIDsAdapter(ge);
+	}
+}
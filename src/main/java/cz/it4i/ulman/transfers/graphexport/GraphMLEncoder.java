@@ -0,0 +1,249 @@
+/*-
+ * #%L
+ * Online Mastodon Exports
+ * %%
+ * Copyright (C) 2021 - 2024 Vladimír Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cz.it4i.ulman.transfers.graphexport;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encodes the GraphML (the same as of the yEdGraphMLWriter) directly into a byte buffer:
+ * all constant parts of the XML are UTF-8 encoded only once, and numbers and colors are
+ * turned into ASCII digits by hand (without Strings). What happens when the buffer gets
+ * full is up to makeRoom(), the default one just enlarges the buffer.
+ */
+class GraphMLEncoder
+{
+	byte[] buf;
+	int pos = 0;
+
+	GraphMLEncoder(final byte[] initialBuffer)
+	{
+		buf = initialBuffer;
+	}
+
+	/** makes sure there is room for the given number of bytes */
+	void makeRoom(final int bytes)
+	throws IOException
+	{
+		if (pos + bytes > buf.length)
+			buf = Arrays.copyOf(buf, Math.max(pos + bytes, 2*buf.length));
+	}
+	// -----------------------------------------------------------------------------
+
+	static byte[] utf8(final String s)
+	{
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	static final byte[] HEADER = utf8(
+			"<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n"
+			+ "<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\" xmlns:java=\"http://www.yworks.com/xml/yfiles-common/1.0/java\" xmlns:sys=\"http://www.yworks.com/xml/yfiles-common/markup/primitives/2.0\" xmlns:x=\"http://www.yworks.com/xml/yfiles-common/markup/2.0\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xmlns:y=\"http://www.yworks.com/xml/graphml\" xmlns:yed=\"http://www.yworks.com/xml/yed/3\" xsi:schemaLocation=\"http://graphml.graphdrawing.org/xmlns http://www.yworks.com/xml/schema/graphml/1.1/ygraphml.xsd\">\n"
+			+ "  <key for=\"node\" id=\"d6\" yfiles.type=\"nodegraphics\"/>\n"
+			+ "  <key for=\"edge\" id=\"d10\" yfiles.type=\"edgegraphics\"/>\n"
+			+ "  <graph edgedefault=\"directed\" id=\"G\">\n");
+	static final byte[] FOOTER = utf8(
+			"  </graph>\n"
+			+ "</graphml>\n");
+
+	private static final byte[] NODE_A = utf8("    <node id=\"");
+	private static final byte[] NODE_B = utf8("\">\n"
+			+ "      <data key=\"d6\">\n"
+			+ "        <y:ShapeNode>\n"
+			+ "          <y:Geometry height=\"");
+	private static final byte[] NODE_C = utf8("\" width=\"");
+	private static final byte[] NODE_D = utf8("\" x=\"");
+	private static final byte[] NODE_E = utf8("\" y=\"");
+	private static final byte[] NODE_F = utf8("\"/>\n"
+			+ "          <y:Fill color=\"");
+	private static final byte[] NODE_G = utf8("\" transparent=\"false\"/>\n"
+			+ "          <y:BorderStyle color=\"#000000\" raised=\"false\" type=\"line\" width=\"1.0\"/>\n"
+			+ "          <y:NodeLabel alignment=\"center\" autoSizePolicy=\"content\" fontFamily=\"Dialog\" fontSize=\"12\" fontStyle=\"plain\" hasBackgroundColor=\"false\" hasLineColor=\"false\" horizontalTextPosition=\"center\" iconTextGap=\"4\" modelName=\"custom\" textColor=\"#000000\" verticalTextPosition=\"bottom\" visible=\"true\">");
+	private static final byte[] NODE_H = utf8("</y:NodeLabel>\n"
+			+ "          <y:Shape type=\"ellipse\"/>\n"
+			+ "        </y:ShapeNode>\n"
+			+ "      </data>\n"
+			+ "    </node>\n");
+
+	private static final byte[] EDGE_A = utf8("    <edge id=\"");
+	private static final byte[] EDGE_B = utf8("\" source=\"");
+	private static final byte[] EDGE_C = utf8("\" target=\"");
+	private static final byte[] EDGE_D = utf8("\">\n"
+			+ "      <data key=\"d10\">\n"
+			+ "        <y:PolyLineEdge>\n");
+	private static final byte[] EDGE_STRAIGHT_PATH = utf8(
+			"          <y:Path sx=\"0.0\" sy=\"0.0\" tx=\"0.0\" ty=\"0.0\"/>\n");
+	private static final byte[] EDGE_BENDED_PATH_A = utf8(
+			"          <y:Path sx=\"0.0\" sy=\"0.0\" tx=\"0.0\" ty=\"0.0\"><y:Point x=\"");
+	private static final byte[] EDGE_BENDED_PATH_B = utf8("\" y=\"");
+	private static final byte[] EDGE_BENDED_PATH_C = utf8("\"/></y:Path>\n");
+	private static final byte[] EDGE_E = utf8(
+			"          <y:LineStyle color=\"#000000\" type=\"line\" width=\"1.0\"/>\n"
+			+ "          <y:Arrows source=\"none\" target=\"none\"/>\n"
+			+ "          <y:BendStyle smoothed=\"false\"/>\n"
+			+ "        </y:PolyLineEdge>\n"
+			+ "      </data>\n"
+			+ "    </edge>\n");
+
+	private static final byte[] HEX_DIGITS = utf8("0123456789ABCDEF");
+	// -----------------------------------------------------------------------------
+
+	void put(final byte[] bytes)
+	throws IOException
+	{
+		put(bytes, bytes.length);
+	}
+
+	void put(final byte[] bytes, final int length)
+	throws IOException
+	{
+		//NB: in pieces, in case makeRoom() cannot provide that much at once
+		for (int i = 0; i < length; ) {
+			makeRoom(Math.min(length - i, buf.length));
+			final int len = Math.min(buf.length - pos, length - i);
+			System.arraycopy(bytes, i, buf, pos, len);
+			pos += len;
+			i += len;
+		}
+	}
+
+	void putInt(int value)
+	throws IOException
+	{
+		makeRoom(11);
+		if (value == Integer.MIN_VALUE) {
+			put(utf8(Integer.toString(value)));
+			return;
+		}
+		if (value < 0) {
+			buf[pos++] = '-';
+			value = -value;
+		}
+		//count the digits, and fill them from the back
+		int digits = 1;
+		for (int v = value; v >= 10; v /= 10) ++digits;
+		int p = pos + digits;
+		pos = p;
+		do {
+			buf[--p] = (byte)('0' + value % 10);
+			value /= 10;
+		} while (value > 0);
+	}
+
+	/** the same as "#%06X", that is, at least six digits and up to eight digits
+	 *  if the top byte is set (e.g. the alpha of the tags' ARGB colors) */
+	void putColor(final int colorRGB)
+	throws IOException
+	{
+		final int digits = Math.max(6, (32 - Integer.numberOfLeadingZeros(colorRGB) + 3) / 4);
+		makeRoom(1+digits);
+		buf[pos++] = '#';
+		for (int shift = 4*(digits-1); shift >= 0; shift -= 4)
+			buf[pos++] = HEX_DIGITS[(colorRGB >>> shift) & 0xF];
+	}
+
+	void putString(final String s)
+	throws IOException
+	{
+		final int len = s.length();
+		//fast path for ASCII-only strings, which the labels usually are
+		if (len <= buf.length) {
+			makeRoom(len);
+			int i = 0;
+			while (i < len) {
+				final char c = s.charAt(i);
+				if (c >= 0x80) break;
+				buf[pos + i++] = (byte)c;
+			}
+			if (i == len) {
+				pos += len;
+				return;
+			}
+		}
+		put(utf8(s));
+	}
+
+	void putId(final int intId, final String strId)
+	throws IOException
+	{
+		if (strId == null) putInt(intId); else putString(strId);
+	}
+	// -----------------------------------------------------------------------------
+
+	/** node whose ID is given either as an int or a String (if not null) */
+	void writeNode(final int intId, final String strId,
+	               final String label, final int colorRGB,
+	               final int x, final int y,
+	               final int width, final int height)
+	throws IOException
+	{
+		put(NODE_A);
+		putId(intId, strId);
+		put(NODE_B);
+		putInt(height);
+		put(NODE_C);
+		putInt(width);
+		put(NODE_D);
+		putInt(x);
+		put(NODE_E);
+		putInt(y);
+		put(NODE_F);
+		putColor(colorRGB);
+		put(NODE_G);
+		putString(label);
+		put(NODE_H);
+	}
+
+	/** edge whose ID is the concatenation of the nodes' IDs, which are given either
+	 *  as ints or Strings; it is bending around the point [bx,by] if 'isBended' */
+	void writeEdge(final int intFromId, final String strFromId,
+	               final int intToId, final String strToId,
+	               final boolean isBended, final int bx, final int by)
+	throws IOException
+	{
+		put(EDGE_A);
+		putId(intFromId, strFromId);
+		putId(intToId, strToId);
+		put(EDGE_B);
+		putId(intFromId, strFromId);
+		put(EDGE_C);
+		putId(intToId, strToId);
+		put(EDGE_D);
+		if (isBended) {
+			put(EDGE_BENDED_PATH_A);
+			putInt(bx);
+			put(EDGE_BENDED_PATH_B);
+			putInt(by);
+			put(EDGE_BENDED_PATH_C);
+		} else {
+			put(EDGE_STRAIGHT_PATH);
+		}
+		put(EDGE_E);
+	}
+}
@@ -28,24 +28,149 @@
  */
 package cz.it4i.ulman.transfers.graphexport;
 
+import org.graphstream.graph.Edge;
 import org.graphstream.graph.Graph;
 import org.graphstream.graph.Node;
 import org.graphstream.graph.implementations.DefaultGraph;
+import org.graphstream.ui.geom.Point3;
+import org.graphstream.ui.view.Camera;
 import org.graphstream.ui.view.Viewer;
+import org.graphstream.ui.view.ViewerListener;
+import org.graphstream.ui.view.ViewerPipe;
 
-public class GraphStreamViewer extends AbstractGraphExporter implements GraphExportable
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class GraphStreamViewer extends AbstractGraphExporter implements GraphExportableV2
 {
 	// -----------------------------------------------------------------------------
 	private final Graph graph;
 
+	/** the window shows up during close(), the nodes refer to the stylesheet classes */
+	private final boolean bulkMode;
+
+	/** the graph is updated by every next export, see the constructor */
+	private final boolean liveMode;
+
+	/** colors seen so far in the bulk mode, each has its own class in the stylesheet */
+	private final Set<Integer> usedColors = new HashSet<>();
+
 	public GraphStreamViewer(final String windowTitle)
 	{
+		this(windowTitle, false);
+	}
+
+	/**
+	 * In the bulk mode, the graph is first built without any viewer attached (and thus
+	 * without any rendering or layouting going on), the nodes are styled only with
+	 * classes of one stylesheet, and the window is opened only on close(). Otherwise,
+	 * the window is opened right away and shows the graph as it is being built.
+	 */
+	public GraphStreamViewer(final String windowTitle, final boolean bulkMode)
+	{
+		this(windowTitle, bulkMode, -1);
+	}
+
+	/**
+	 * With non-negative 'lodInitialDepth', the viewer operates in the level-of-detail mode
+	 * (which implies the bulk mode): the lineage is only recorded, and on close() only
+	 * the roots and their first 'lodInitialDepth' generations are put into the graph.
+	 * The remaining subtrees are shown collapsed, as their roots labelled with the number
+	 * of hidden descendants. Clicking on a collapsed node expands it by one generation,
+	 * clicking on an expanded one collapses it back. Zooming in expands the collapsed
+	 * nodes in the view until LOD_VISIBLE_BUDGET nodes are shown there.
+	 */
+	public GraphStreamViewer(final String windowTitle, final boolean bulkMode, final int lodInitialDepth)
+	{
+		this(windowTitle, bulkMode, lodInitialDepth, false);
+	}
+
+	/**
+	 * In the live mode (which implies the bulk mode and cannot be combined with the
+	 * level-of-detail mode), the same viewer can be exported into repeatedly: the first
+	 * export opens the window, every next export (each finished with close()) updates the
+	 * shown graph with only the nodes and lines that were added, removed or moved since
+	 * the previous export.
+	 */
+	public GraphStreamViewer(final String windowTitle, final boolean bulkMode, final int lodInitialDepth,
+	                         final boolean liveMode)
+	{
+		if (liveMode && lodInitialDepth >= 0)
+			throw new IllegalArgumentException("The live mode cannot be combined with the level-of-detail mode.");
+		this.lodInitialDepth = lodInitialDepth;
+		this.liveMode = liveMode;
+		this.bulkMode = bulkMode || isLodMode() || liveMode;
 		graph = new DefaultGraph(windowTitle);
-		graph.display( false ).setCloseFramePolicy(Viewer.CloseFramePolicy.CLOSE_VIEWER);
+		if (!this.bulkMode) openWindow();
+	}
+
+	public boolean isLiveMode() { return liveMode; }
+
+	/** the 'action' is executed once the user closes the window (of the bulk mode) */
+	public void setOnWindowClosed(final Runnable action)
+	{
+		onWindowClosed = action;
 	}
 
+	private Viewer openWindow()
+	{
+		final Viewer viewer = graph.display( false );
+		viewer.setCloseFramePolicy(Viewer.CloseFramePolicy.CLOSE_VIEWER);
+		return viewer;
+	}
+
+	private boolean windowOpened = false;
+
 	@Override
-	public void close() {}
+	public void close()
+	{
+		if (!bulkMode) return;
+		if (liveMode) liveRemoveUntouched();
+		if (windowOpened) {
+			if (liveMode && usedColors.size() != noOfColorsInStylesheet) updateStylesheet();
+			return;
+		}
+		windowOpened = true;
+
+		if (isLodMode()) lodShowInitialTrees();
+		updateStylesheet();
+
+		final Viewer viewer = openWindow();
+		final Thread t = new Thread(() -> interactWith(viewer), "GraphStream viewer events");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private int noOfColorsInStylesheet = 0;
+
+	private void updateStylesheet()
+	{
+		final StringBuilder css = new StringBuilder();
+		css.append("node { size: ").append(defaultNodeWidth).append("px,").append(defaultNodeHeight).append("px;")
+			.append(" stroke-mode: plain; stroke-color: #000000;")
+			.append(" text-alignment: center; text-offset: ").append(-defaultNodeWidth).append("px,0px; }\n");
+		css.append("node.").append(BENDER_CLASS).append(" { visibility-mode: hidden; }\n");
+		css.append("node.").append(COLLAPSED_CLASS).append(" { shape: box; stroke-width: 3px; }\n");
+		for (int colorRGB : usedColors)
+			css.append("node.").append(colorClass(colorRGB))
+				.append(" { fill-color: #").append(String.format("%06X",colorRGB & 0xFFFFFF)).append("; }\n");
+		graph.addAttribute("ui.stylesheet", css.toString());
+		noOfColorsInStylesheet = usedColors.size();
+	}
+
+	private static final String BENDER_CLASS = "bender";
+	private static final String COLLAPSED_CLASS = "collapsed";
+
+	private static String colorClass(final int colorRGB)
+	{
+		return "c"+Integer.toHexString(colorRGB & 0xFFFFFF);
+	}
 	// -----------------------------------------------------------------------------
 
 	private final int yAxisStretchFactor = 3;
@@ -64,6 +189,21 @@ public class GraphStreamViewer extends AbstractGraphExporter implements GraphExp
 	             final int x, final int y,
 	             final int width, final int height)
 	{
+		if (isLodMode()) {
+			lodRecordNode(id, label,colorRGB, x,y);
+			return;
+		}
+
+		if (bulkMode) {
+			final Node n = putNode( id, x,y );
+			usedColors.add(colorRGB & 0xFFFFFF);
+			putAttribute( n, "ui.class", colorClass(colorRGB) );
+			if (width != defaultNodeWidth || height != defaultNodeHeight)
+				putAttribute( n, "ui.style", "size: "+width+","+height+"; text-offset: "+(-width)+",0;" );
+			putAttribute( n, "ui.label", label );
+			return;
+		}
+
 		final Node n = graph.addNode( id );
 		n.addAttribute( "xyz", x,-y *yAxisStretchFactor,0 );
 		n.addAttribute( "ui.style", "size: "+width+","+height+";" );
@@ -82,7 +222,8 @@ public class GraphStreamViewer extends AbstractGraphExporter implements GraphExp
 	@Override
 	public void addStraightLine(final String fromId, final String toId)
 	{
-		graph.addEdge(fromId.concat(toId), fromId, toId);
+		if (isLodMode()) lodRecordLine(fromId, toId, NO_BENDING,NO_BENDING);
+		else putEdge(fromId, toId);
 	}
 
 	@Override
@@ -106,15 +247,90 @@ public class GraphStreamViewer extends AbstractGraphExporter implements GraphExp
 	@Override
 	public void addBendedLine(final String fromId, final String toId,
 	                          final int toX, final int toY, final int bendingOffsetY)
+	{
+		if (isLodMode()) lodRecordLine(fromId, toId, toX,toY+bendingOffsetY);
+		else addBendedLineViaPoint(fromId, toId, toX,toY+bendingOffsetY);
+	}
+
+	private void addBendedLineViaPoint(final String fromId, final String toId,
+	                                   final int bendX, final int bendY)
 	{
 		//ID of the hidden node -- the "bender"
 		final String benderNodeID = toId.concat("hidden");
-		final Node n = graph.addNode( benderNodeID );
-		n.addAttribute( "xyz", toX,(-toY-bendingOffsetY) *yAxisStretchFactor,0 );
-		n.addAttribute( "ui.hide" );
+		if (bulkMode) {
+			putAttribute( putNode( benderNodeID, bendX,bendY ), "ui.class", BENDER_CLASS );
+		} else {
+			final Node n = graph.addNode( benderNodeID );
+			n.addAttribute( "xyz", bendX,-bendY *yAxisStretchFactor,0 );
+			n.addAttribute( "ui.hide" );
+		}
 
-		graph.addEdge( fromId.concat( benderNodeID ), fromId, benderNodeID );
-		graph.addEdge( benderNodeID.concat( toId ),   benderNodeID, toId );
+		putEdge( fromId, benderNodeID );
+		putEdge( benderNodeID, toId );
+	}
+
+	// -----------------------------------------------------------------------------
+	//in the live mode, the elements of the graph are re-used and only updated if needed,
+	//the elements not touched by the current export are removed when it is closed
+	private final Set<String> liveTouchedNodes = new HashSet<>();
+	private final Set<String> liveTouchedEdges = new HashSet<>();
+	private final Map<String,Long> livePositions = new HashMap<>();
+
+	private Node putNode(final String id, final int x, final int y)
+	{
+		Node n = liveMode ? graph.getNode( id ) : null;
+		if (n == null) n = graph.addNode( id );
+
+		if (liveMode) {
+			liveTouchedNodes.add(id);
+			final Long xy = ((long)x << 32) | (y & 0xFFFFFFFFL);
+			if (xy.equals(livePositions.put(id, xy))) return n;
+		}
+		n.addAttribute( "xyz", x,-y *yAxisStretchFactor,0 );
+		return n;
+	}
+
+	private void putAttribute(final Node n, final String key, final String value)
+	{
+		if (liveMode && value.equals(n.getAttribute(key))) return;
+		n.addAttribute( key, value );
+	}
+
+	/** the separator keeps the IDs of the edges apart, e.g. "1"+"23" would be otherwise
+	 *  the same as "12"+"3" and the second edge would not be displayed */
+	static String edgeId(final String fromId, final String toId)
+	{
+		return fromId + "-" + toId;
+	}
+
+	private void putEdge(final String fromId, final String toId)
+	{
+		final String id = edgeId(fromId, toId);
+		if (liveMode) {
+			liveTouchedEdges.add(id);
+			if (graph.getEdge(id) != null) return;
+		}
+		graph.addEdge(id, fromId, toId);
+	}
+
+	private void liveRemoveUntouched()
+	{
+		final List<String> untouched = new ArrayList<>();
+		for (Node n : graph.getNodeSet())
+			if (!liveTouchedNodes.contains(n.getId())) untouched.add(n.getId());
+		//NB: removing a node removes also its edges
+		for (String id : untouched) {
+			graph.removeNode(id);
+			livePositions.remove(id);
+		}
+
+		untouched.clear();
+		for (Edge e : graph.getEdgeSet())
+			if (!liveTouchedEdges.contains(e.getId())) untouched.add(e.getId());
+		for (String id : untouched) graph.removeEdge(id);
+
+		liveTouchedNodes.clear();
+		liveTouchedEdges.clear();
 	}
 
 	@Override
@@ -128,6 +344,282 @@ public class GraphStreamViewer extends AbstractGraphExporter implements GraphExp
 	}
 	// -----------------------------------------------------------------------------
 
+	//NB: GraphStream identifies its nodes and edges with Strings anyway
+	@Override
+	public void addNode(final int id,
+	                    final String label, final int colorRGB,
+	                    final int x, final int y)
+	{
+		addNode(Integer.toString(id), label,colorRGB, x,y, defaultNodeWidth,defaultNodeHeight);
+	}
+
+	@Override
+	public void addNode(final int id,
+	                    final String label, final int colorRGB,
+	                    final int x, final int y,
+	                    final int width, final int height)
+	{
+		addNode(Integer.toString(id), label,colorRGB, x,y, width,height);
+	}
+
+	@Override
+	public void addStraightLine(final int fromId, final int toId)
+	{
+		addStraightLine(Integer.toString(fromId), Integer.toString(toId));
+	}
+
+	@Override
+	public void addBendedLine(final int fromId, final int toId,
+	                          final int toX, final int toY)
+	{
+		addBendedLine(fromId,toId, toX,toY, defaultBendingPointAbsoluteOffsetY);
+	}
+
+	@Override
+	public void addBendedLine(final int fromId, final int toId,
+	                          final int toX, final int toY, final int bendingOffsetY)
+	{
+		addBendedLine(Integer.toString(fromId), Integer.toString(toId), toX,toY, bendingOffsetY);
+	}
+	// -----------------------------------------------------------------------------
+
+	/** generations initially shown below every root, or -1 if not in the level-of-detail mode */
+	private final int lodInitialDepth;
+
+	/** zooming in expands collapsed nodes until this many nodes are in the view */
+	public static final int LOD_VISIBLE_BUDGET = 2000;
+
+	private boolean isLodMode() { return lodInitialDepth >= 0; }
+
+	private static final int NO_BENDING = Integer.MIN_VALUE;
+
+	//the recorded lineage (the nodes are addressed with their rows) and which part of it
+	//is currently in the graph; the nodes always use the default size in this mode
+	private final Map<String,Integer> lodRowOfId = new HashMap<>();
+	private int lodNoOfNodes = 0;
+	private String[] lodIds = new String[1024], lodLabels = new String[1024];
+	private int[] lodColors = new int[1024], lodXs = new int[1024], lodYs = new int[1024];
+	//the line leading into the node: the mother's row and the bending point (or NO_BENDING)
+	private int[] lodParents = new int[1024], lodBendXs = new int[1024], lodBendYs = new int[1024];
+	private int[] lodFirstDaughter = new int[1024], lodNextSister = new int[1024];
+	private int[] lodNoOfDescendants;
+	private final BitSet lodShown = new BitSet(), lodExpanded = new BitSet();
+
+	private void lodRecordNode(final String id, final String label, final int colorRGB, final int x, final int y)
+	{
+		if (lodNoOfNodes == lodIds.length) {
+			final int newSize = 2*lodNoOfNodes;
+			lodIds = Arrays.copyOf(lodIds, newSize);
+			lodLabels = Arrays.copyOf(lodLabels, newSize);
+			lodColors = Arrays.copyOf(lodColors, newSize);
+			lodXs = Arrays.copyOf(lodXs, newSize);
+			lodYs = Arrays.copyOf(lodYs, newSize);
+			lodParents = Arrays.copyOf(lodParents, newSize);
+			lodBendXs = Arrays.copyOf(lodBendXs, newSize);
+			lodBendYs = Arrays.copyOf(lodBendYs, newSize);
+			lodFirstDaughter = Arrays.copyOf(lodFirstDaughter, newSize);
+			lodNextSister = Arrays.copyOf(lodNextSister, newSize);
+		}
+		final int row = lodNoOfNodes++;
+		lodRowOfId.put(id, row);
+		lodIds[row] = id;
+		lodLabels[row] = label;
+		lodColors[row] = colorRGB & 0xFFFFFF;
+		lodXs[row] = x;
+		lodYs[row] = y;
+		lodParents[row] = -1;
+		lodFirstDaughter[row] = -1;
+		lodNextSister[row] = -1;
+		usedColors.add(colorRGB & 0xFFFFFF);
+	}
+
+	private void lodRecordLine(final String fromId, final String toId, final int bendX, final int bendY)
+	{
+		final Integer from = lodRowOfId.get(fromId);
+		final Integer to = lodRowOfId.get(toId);
+		if (from == null || to == null)
+			throw new IllegalArgumentException("Line between unknown nodes "+fromId+" and "+toId);
+		lodParents[to] = from;
+		lodBendXs[to] = bendX;
+		lodBendYs[to] = bendY;
+		lodNextSister[to] = lodFirstDaughter[from];
+		lodFirstDaughter[from] = to;
+	}
+
+	private void lodShowInitialTrees()
+	{
+		//descendants are counted in the reversed DFS order, that is, daughters before mothers
+		lodNoOfDescendants = new int[lodNoOfNodes];
+		final int[] order = new int[lodNoOfNodes];
+		int orderSize = 0;
+		final int[] stack = new int[lodNoOfNodes];
+		for (int root = 0; root < lodNoOfNodes; ++root) {
+			if (lodParents[root] != -1) continue;
+			int stackSize = 0;
+			stack[stackSize++] = root;
+			while (stackSize > 0) {
+				final int row = stack[--stackSize];
+				order[orderSize++] = row;
+				for (int d = lodFirstDaughter[row]; d != -1; d = lodNextSister[d]) stack[stackSize++] = d;
+			}
+		}
+		for (int i = orderSize-1; i >= 0; --i) {
+			final int row = order[i];
+			if (lodParents[row] != -1) lodNoOfDescendants[lodParents[row]] += lodNoOfDescendants[row] + 1;
+		}
+
+		for (int root = 0; root < lodNoOfNodes; ++root) {
+			if (lodParents[root] != -1) continue;
+			lodShowNode(root);
+			lodExpandToDepth(root, lodInitialDepth);
+		}
+	}
+
+	private void lodExpandToDepth(final int row, final int depth)
+	{
+		if (depth == 0) return;
+		lodExpand(row);
+		for (int d = lodFirstDaughter[row]; d != -1; d = lodNextSister[d]) lodExpandToDepth(d, depth-1);
+	}
+
+	private void lodShowNode(final int row)
+	{
+		final Node n = graph.addNode( lodIds[row] );
+		n.addAttribute( "xyz", lodXs[row],-lodYs[row] *yAxisStretchFactor,0 );
+		lodShown.set(row);
+		lodUpdateLook(row);
+
+		final int mother = lodParents[row];
+		if (mother != -1 && lodShown.get(mother)) {
+			if (lodBendXs[row] == NO_BENDING) graph.addEdge(edgeId(lodIds[mother], lodIds[row]), lodIds[mother], lodIds[row]);
+			else addBendedLineViaPoint(lodIds[mother], lodIds[row], lodBendXs[row],lodBendYs[row]);
+		}
+	}
+
+	private void lodUpdateLook(final int row)
+	{
+		final Node n = graph.getNode( lodIds[row] );
+		if (lodFirstDaughter[row] != -1 && !lodExpanded.get(row)) {
+			n.addAttribute( "ui.class", colorClass(lodColors[row])+", "+COLLAPSED_CLASS );
+			n.addAttribute( "ui.label", lodLabels[row]+" (+"+lodNoOfDescendants[row]+")" );
+		} else {
+			n.addAttribute( "ui.class", colorClass(lodColors[row]) );
+			n.addAttribute( "ui.label", lodLabels[row] );
+		}
+	}
+
+	private void lodExpand(final int row)
+	{
+		if (lodExpanded.get(row)) return;
+		lodExpanded.set(row);
+		for (int d = lodFirstDaughter[row]; d != -1; d = lodNextSister[d]) lodShowNode(d);
+		lodUpdateLook(row);
+	}
+
+	private void lodCollapse(final int row)
+	{
+		if (!lodExpanded.get(row)) return;
+		lodExpanded.clear(row);
+
+		final int[] stack = new int[lodNoOfDescendants[row]];
+		int stackSize = 0;
+		for (int d = lodFirstDaughter[row]; d != -1; d = lodNextSister[d]) stack[stackSize++] = d;
+		while (stackSize > 0) {
+			final int r = stack[--stackSize];
+			if (!lodShown.get(r)) continue;
+			if (lodExpanded.get(r))
+				for (int d = lodFirstDaughter[r]; d != -1; d = lodNextSister[d]) stack[stackSize++] = d;
+			//NB: removing a node removes also its edges
+			if (lodBendXs[r] != NO_BENDING) graph.removeNode( lodIds[r].concat("hidden") );
+			graph.removeNode( lodIds[r] );
+			lodShown.clear(r);
+			lodExpanded.clear(r);
+		}
+		lodUpdateLook(row);
+	}
+
+	/** expands collapsed nodes in the view as long as the view is not too crowded,
+	    returns false if there was nothing to expand */
+	private boolean lodExpandVisible(final Camera camera)
+	{
+		final Point3 center = camera.getViewCenter();
+		final Point3 size = camera.getMetrics().getSize();
+		final double halfWidth  = 0.5 * size.x * camera.getViewPercent();
+		final double halfHeight = 0.5 * size.y * camera.getViewPercent();
+
+		final BitSet toBeExpanded = new BitSet();
+		int noOfVisible = 0;
+		for (int row = lodShown.nextSetBit(0); row >= 0; row = lodShown.nextSetBit(row+1)) {
+			if (Math.abs(lodXs[row] - center.x) > halfWidth) continue;
+			if (Math.abs(-lodYs[row]*yAxisStretchFactor - center.y) > halfHeight) continue;
+			++noOfVisible;
+			if (lodFirstDaughter[row] != -1 && !lodExpanded.get(row)) toBeExpanded.set(row);
+		}
+
+		boolean expandedSome = false;
+		for (int row = toBeExpanded.nextSetBit(0); row >= 0 && noOfVisible < LOD_VISIBLE_BUDGET;
+		     row = toBeExpanded.nextSetBit(row+1)) {
+			lodExpand(row);
+			for (int d = lodFirstDaughter[row]; d != -1; d = lodNextSister[d]) ++noOfVisible;
+			expandedSome = true;
+		}
+		return expandedSome;
+	}
+
+	// -----------------------------------------------------------------------------
+
+	private volatile boolean viewerOpen = true;
+	private volatile Runnable onWindowClosed = null;
+
+	private void interactWith(final Viewer viewer)
+	{
+		final ViewerPipe pipe = viewer.newViewerPipe();
+		pipe.addViewerListener(new ViewerListener() {
+			@Override
+			public void viewClosed(String viewName) {
+				viewerOpen = false;
+				if (onWindowClosed != null) onWindowClosed.run();
+			}
+
+			@Override
+			public void buttonPushed(String id) {
+				if (!isLodMode()) return;
+				final Integer row = lodRowOfId.get(id);
+				if (row == null || lodFirstDaughter[row] == -1) return;
+				if (lodExpanded.get(row)) lodCollapse(row);
+				else lodExpand(row);
+			}
+
+			@Override
+			public void buttonReleased(String id) {}
+		});
+
+		final Camera camera = viewer.getDefaultView().getCamera();
+		double lastViewPercent = camera.getViewPercent();
+		Point3 lastCenter = new Point3(camera.getViewCenter());
+		boolean expandingAfterZoom = false;
+		try {
+			while (viewerOpen) {
+				pipe.pump();
+				Thread.sleep(100);
+				if (!isLodMode()) continue;
+
+				final double viewPercent = camera.getViewPercent();
+				final Point3 center = camera.getViewCenter();
+				if (viewPercent != lastViewPercent || center.distance(lastCenter) > 0) {
+					//NB: only after zooming in, the overview shows what was asked for initially
+					expandingAfterZoom = viewPercent < 1.0;
+					lastViewPercent = viewPercent;
+					lastCenter = new Point3(center);
+				}
+				if (expandingAfterZoom) expandingAfterZoom = lodExpandVisible(camera);
+			}
+		} catch (InterruptedException e) {
+			//just stop
+		}
+	}
+	// -----------------------------------------------------------------------------
+
 	public void runExample()
 	{
 		System.out.println("gsApp started");
@@ -0,0 +1,133 @@
+/*-
+ * #%L
+ * Online Mastodon Exports
+ * %%
+ * Copyright (C) 2021 - 2024 Vladimír Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cz.it4i.ulman.transfers.graphexport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzips blocks of data in parallel (pigz-style) and writes them, in their original order,
+ * into the given file. Every block becomes its own gzip member, and a file of concatenated
+ * members is a valid .gz file. The compression runs on the common ForkJoinPool and the
+ * writing on an own thread, the caller only waits when all buffers are in use.
+ */
+class ParallelGzipWriter
+{
+	/** the GraphML is so repetitive that even the fastest level shrinks it about 20 times,
+	 *  the default level shrinks it by another third but takes twice as long */
+	static final int COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+
+	/** how many blocks can be in the compression or writing at the same time */
+	static final int MAX_PENDING_BLOCKS = 2 * ForkJoinPool.getCommonPoolParallelism() + 2;
+
+	ParallelGzipWriter(final FileChannel file, final int blockSize)
+	{
+		this.file = file;
+		freeBuffers = new ArrayBlockingQueue<>(MAX_PENDING_BLOCKS);
+		for (int i = 0; i < MAX_PENDING_BLOCKS; ++i) freeBuffers.add(new byte[blockSize]);
+		writer = Executors.newSingleThreadExecutor(r -> {
+			final Thread t = new Thread(r, "Gzip writer");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/** returns the buffer to be filled with the next block of data */
+	byte[] getFreeBuffer()
+	throws IOException
+	{
+		try {
+			return freeBuffers.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the compression", e);
+		}
+	}
+
+	/** hands over the buffer (obtained from getFreeBuffer()) with 'length' bytes of data,
+	 *  the buffer must not be touched afterwards */
+	void submitBlock(final byte[] buffer, final int length)
+	{
+		final CompletableFuture<byte[]> compressed = CompletableFuture.supplyAsync(() -> {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(length/4 + 64);
+			try (GZIPOutputStream gz = new GZIPOutputStream(out, 1 << 16) {{ def.setLevel(COMPRESSION_LEVEL); }}) {
+				gz.write(buffer, 0, length);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} finally {
+				freeBuffers.add(buffer);
+			}
+			return out.toByteArray();
+		});
+
+		//the blocks are written in the order in which they were submitted
+		lastWrite = lastWrite.thenCombineAsync(compressed, (v, bytes) -> {
+			try {
+				final ByteBuffer b = ByteBuffer.wrap(bytes);
+				while (b.hasRemaining()) file.write(b);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return null;
+		}, writer);
+	}
+
+	/** waits until all submitted blocks are written, and closes the file */
+	void close()
+	throws IOException
+	{
+		try {
+			lastWrite.join();
+		} catch (CompletionException e) {
+			throw e.getCause() instanceof UncheckedIOException
+					? ((UncheckedIOException)e.getCause()).getCause()
+					: new IOException(e.getCause());
+		} finally {
+			writer.shutdown();
+			file.close();
+		}
+	}
+
+	private final FileChannel file;
+	private final BlockingQueue<byte[]> freeBuffers;
+	private final ExecutorService writer;
+	private CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+}
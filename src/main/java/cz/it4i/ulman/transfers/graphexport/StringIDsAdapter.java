@@ -0,0 +1,160 @@
+/*-
+ * #%L
+ * Online Mastodon Exports
+ * %%
+ * Copyright (C) 2021 - 2024 Vladimír Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cz.it4i.ulman.transfers.graphexport;
+
+/**
+ * Makes a String-based GraphExportable usable as GraphExportableV2,
+ * the int IDs are handed over as their decimal representations.
+ */
+public class StringIDsAdapter implements GraphExportableV2
+{
+	private final GraphExportable ge;
+
+	public StringIDsAdapter(final GraphExportable stringBasedExporter)
+	{
+		ge = stringBasedExporter;
+	}
+
+	// -----------------------------------------------------------------------------
+	@Override
+	public void addNode(int id, String label, int colorRGB, int x, int y) {
+		ge.addNode(Integer.toString(id), label,colorRGB, x,y);
+	}
+
+	@Override
+	public void addNode(int id, String label, int colorRGB, int x, int y, int width, int height) {
+		ge.addNode(Integer.toString(id), label,colorRGB, x,y, width,height);
+	}
+
+	@Override
+	public void addStraightLine(int fromId, int toId) {
+		ge.addStraightLine(Integer.toString(fromId), Integer.toString(toId));
+	}
+
+	@Override
+	public void addBendedLine(int fromId, int toId, int toX, int toY) {
+		ge.addBendedLine(Integer.toString(fromId), Integer.toString(toId), toX,toY);
+	}
+
+	@Override
+	public void addBendedLine(int fromId, int toId, int toX, int toY, int bendingOffsetY) {
+		ge.addBendedLine(Integer.toString(fromId), Integer.toString(toId), toX,toY, bendingOffsetY);
+	}
+	// -----------------------------------------------------------------------------
+
+	@Override
+	public int get_xColumnWidth() {
+		return ge.get_xColumnWidth();
+	}
+	@Override
+	public int get_yLineStep() {
+		return ge.get_yLineStep();
+	}
+	@Override
+	public int get_defaultBendingPointAbsoluteOffsetY() {
+		return ge.get_defaultBendingPointAbsoluteOffsetY();
+	}
+	@Override
+	public int get_defaultNodeWidth() {
+		return ge.get_defaultNodeWidth();
+	}
+	@Override
+	public int get_defaultNodeHeight() {
+		return ge.get_defaultNodeHeight();
+	}
+	@Override
+	public int get_defaultNodeColour() {
+		return ge.get_defaultNodeColour();
+	}
+
+	@Override
+	public void set_xColumnWidth(int val) {
+		ge.set_xColumnWidth(val);
+	}
+	@Override
+	public void set_yLineStep(int val) {
+		ge.set_yLineStep(val);
+	}
+	@Override
+	public void set_defaultBendingPointAbsoluteOffsetY(int val) {
+		ge.set_defaultBendingPointAbsoluteOffsetY(val);
+	}
+	@Override
+	public void set_defaultNodeWidth(int val) {
+		ge.set_defaultNodeWidth(val);
+	}
+	@Override
+	public void set_defaultNodeHeight(int val) {
+		ge.set_defaultNodeHeight(val);
+	}
+	@Override
+	public void set_defaultNodeColour(int val) {
+		ge.set_defaultNodeColour(val);
+	}
+
+	@Override
+	public void addNode(String id, String label, int colorRGB, int x, int y) {
+		ge.addNode(id, label,colorRGB, x,y);
+	}
+
+	@Override
+	public void addNode(String id, String label, int colorRGB, int x, int y, int width, int height) {
+		ge.addNode(id, label,colorRGB, x,y, width,height);
+	}
+
+	@Override
+	public void addStraightLine(String fromId, String toId) {
+		ge.addStraightLine(fromId, toId);
+	}
+
+	@Override
+	public void addStraightLineConnectedVertex(String parentNodeID, String newNodeID, String label, int colorRGB, int x, int y) {
+		ge.addStraightLineConnectedVertex(parentNodeID, newNodeID, label,colorRGB, x,y);
+	}
+
+	@Override
+	public void addBendedLine(String fromId, String toId, int toX, int toY) {
+		ge.addBendedLine(fromId, toId, toX,toY);
+	}
+
+	@Override
+	public void addBendedLine(String fromId, String toId, int toX, int toY, int bendingOffsetY) {
+		ge.addBendedLine(fromId, toId, toX,toY, bendingOffsetY);
+	}
+
+	@Override
+	public void addBendedLineConnectedVertex(String parentNodeID, String newNodeID, String label, int colorRGB, int x, int y) {
+		ge.addBendedLineConnectedVertex(parentNodeID, newNodeID, label,colorRGB, x,y);
+	}
+
+	@Override
+	public void close() {
+		ge.close();
+	}
+}
@@ -29,6 +29,7 @@
 package cz.it4i.ulman.transfers.graphexport;
 
 import org.joml.Vector3d;
+import org.mastodon.mamut.model.Link;
 import org.mastodon.mamut.model.Spot;
 
 public class Utils {
@@ -36,4 +37,20 @@ public class Utils {
 	{
 		return new Vector3d( s.getDoublePosition(0), s.getDoublePosition(1), s.getDoublePosition(2) );
 	}
+
+	/** returns the first found neighbor from an earlier time point (in the 'ref'),
+	 *  or null if there is none (the spot is a root then) */
+	public static Spot findPredecessor(final Spot spot, final Spot ref, final Link lRef)
+	{
+		final int time = spot.getTimepoint();
+		for (int n = 0; n < spot.incomingEdges().size(); ++n) {
+			spot.incomingEdges().get(n, lRef).getSource(ref);
+			if (ref.getTimepoint() < time) return ref;
+		}
+		for (int n = 0; n < spot.outgoingEdges().size(); ++n) {
+			spot.outgoingEdges().get(n, lRef).getTarget(ref);
+			if (ref.getTimepoint() < time) return ref;
+		}
+		return null;
+	}
 }
@@ -0,0 +1,122 @@
+/*-
+ * #%L
+ * Online Mastodon Exports
+ * %%
+ * Copyright (C) 2021 - 2024 Vladimír Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cz.it4i.ulman.transfers.graphexport.leftrightness;
+
+import org.mastodon.collection.RefList;
+import org.mastodon.mamut.model.Spot;
+import org.joml.Vector3d;
+import java.util.Comparator;
+
+/** Base of the sorters that decide from the positions of the daughters. When sorting (in the
+ *  non-verbose mode), the positions and whatever else a sorter derives from a single daughter
+ *  are fetched only once per sort() into primitive arrays, and the comparisons then work only
+ *  with these, without any allocation. The arrays are per thread because one sorter serves
+ *  the parallel layout of many trees. The angular thresholds are compared as cosines. */
+public abstract class AbstractGeometricSorter extends AbstractDescendantsSorter {
+	@Override
+	public void sort(final RefList<Spot> listOfDaughters) {
+		if (listOfDaughters.size() < 2) return;
+		final Keys k = keys.get();
+		k.load(listOfDaughters);
+		prepareKeys(k);
+		listOfDaughters.sort(k);
+	}
+
+	/** called once per sort(), after the keys were loaded, to derive further keys
+	 *  (such as the thresholds' cosines) */
+	abstract void prepareKeys(final Keys k);
+
+	/** the sorting criterion on the 'i'-th and 'j'-th daughter (i != j) of the keys */
+	abstract int compareKeys(final Keys k, final int i, final int j);
+
+	private final ThreadLocal<Keys> keys = ThreadLocal.withInitial(Keys::new);
+
+	/** the keys of the daughters currently being sorted, the daughters are
+	 *  addressed with their position in the list before the sorting began */
+	final class Keys implements Comparator<Spot> {
+		int size = 0;
+		int[] poolIndices = new int[4];
+		/** x,y,z of every daughter */
+		double[] pos = new double[12];
+		/** x,y,z of a unit vector from every daughter to the centre, if a sorter uses it */
+		double[] toCentre = new double[12];
+
+		double cosLayeringLower, cosLayeringUpper, cosLeftRight;
+
+		void load(final RefList<Spot> list) {
+			size = list.size();
+			if (size > poolIndices.length) {
+				poolIndices = new int[size];
+				pos = new double[3*size];
+				toCentre = new double[3*size];
+			}
+			final Spot ref = list.createRef();
+			for (int i = 0; i < size; ++i) {
+				final Spot s = list.get(i, ref);
+				poolIndices[i] = s.getInternalPoolIndex();
+				pos[3*i  ] = s.getDoublePosition(0);
+				pos[3*i+1] = s.getDoublePosition(1);
+				pos[3*i+2] = s.getDoublePosition(2);
+			}
+			list.releaseRef(ref);
+		}
+
+		private int slotOf(final Spot s) {
+			final int idx = s.getInternalPoolIndex();
+			for (int i = 0; i < size; ++i) if (poolIndices[i] == idx) return i;
+			throw new IllegalStateException("Spot "+s.getLabel()+" is not among the sorted daughters.");
+		}
+
+		@Override
+		public int compare(final Spot d1, final Spot d2) {
+			final int i = slotOf(d1);
+			final int j = slotOf(d2);
+			return i == j ? 0 : compareKeys(this, i, j);
+		}
+	}
+
+	/** full-precision text of the vector for the getCacheKey(), Vector3d.toString()
+	 *  rounds the coordinates and would make different sorters look the same */
+	static String keyOf(final Vector3d v) {
+		return "(" + v.x + "," + v.y + "," + v.z + ")";
+	}
+
+	static double cosOfDeg(final double angleDeg) {
+		return Math.cos(angleDeg * Math.PI / 180.0);
+	}
+
+	/** stores the x,y,z of the normalized vector into 'v' at 'offset' */
+	static void normalize(final double x, final double y, final double z,
+	                      final double[] v, final int offset) {
+		final double invLength = 1.0 / Math.sqrt(x*x + y*y + z*z);
+		v[offset  ] = x * invLength;
+		v[offset+1] = y * invLength;
+		v[offset+2] = z * invLength;
+	}
+}
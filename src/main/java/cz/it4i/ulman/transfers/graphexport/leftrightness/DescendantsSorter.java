@@ -46,4 +46,14 @@ public interface DescendantsSorter {
 	default void sort(final RefList<Spot> listOfDaughters, final Logger debugLogger) {
 		sort(listOfDaughters);
 	}
+
+	/** Returns a description of this sorter and all its parameters such that two sorters with equal
+	 * descriptions sort any list of daughters the same, provided the spots have not moved. Results
+	 * of the sorting (e.g., a layout of the lineage) can be then cached and re-used as long as the
+	 * description is the same. The default implementation returns null, which disables any caching,
+	 * because the sorting may in general depend on anything (e.g. on spots labels).
+	 */
+	default String getCacheKey() {
+		return null;
+	}
 }
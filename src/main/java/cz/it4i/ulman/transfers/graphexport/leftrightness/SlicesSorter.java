@@ -32,7 +32,7 @@ import cz.it4i.ulman.transfers.graphexport.GraphExportable;
 import org.joml.Vector3d;
 import static cz.it4i.ulman.transfers.graphexport.Utils.createVector3d;
 
-public class SlicesSorter extends AbstractDescendantsSorter {
+public class SlicesSorter extends AbstractGeometricSorter {
 	/** the south-to-north reference oriented axis */
 	final Vector3d axisUp;
 
@@ -69,59 +69,6 @@ public class SlicesSorter extends AbstractDescendantsSorter {
 
 		final double radToDegFactor = 180.0 / Math.PI;
 
-		this.comparator = (d1, d2) -> {
-			if (d1.equals(d2)) return 0;
-
-			final Vector3d d1pos = createVector3d(d1);
-			final Vector3d d2pos = createVector3d(d2);
-
-			//position exactly between the two daughters
-			final Vector3d centre = new Vector3d(d1pos).add(d2pos).div(2.0);
-			//now, project this position onto the up axis
-			final double distOnUpAxis = centre.sub(axisPoint).dot(axisUp);
-			axisUp.mul(distOnUpAxis, centre).add(axisPoint);
-			//NB: centre is now on the axisUp when it is pasing through the axisPoint
-
-			//super useful shortcuts...
-			final Vector3d d1tod2 = new Vector3d(d2pos).sub(d1pos).normalize();
-			final Vector3d d1toc  = new Vector3d(centre).sub(d1pos).normalize();
-
-			//layering:
-			//
-			//check the angle between d1->centre and d1->d2,
-			//does it carry a sign of starting two layers?
-			double angle_d2d1c_deg = Math.acos( d1toc.dot(d1tod2) ) *radToDegFactor;
-			//d2 is closer to centre than d1
-			if (angle_d2d1c_deg <= layeringLowerCutoffAngleDeg) return +1;
-				//d1 is closer to centre than d2
-			else if (angle_d2d1c_deg >= layeringUpperCutoffAngleDeg) return -1;
-			//NB: tree of a daughter closer to the centre is drawn first (in left)
-
-			//side-by-side configuration:
-			//
-			//consider a triangle/plane given by d1,d2 and c
-			final Vector3d triangleUp = new Vector3d(d1tod2).cross(d1toc).normalize();
-
-			//angle between triangle's normal and up-vector (south-to-north axis)
-			double angle_upsDiff_deg = Math.acos( triangleUp.dot(axisUp) ) *radToDegFactor;
-			if (angle_upsDiff_deg < lrTOupThresholdAngleDeg)
-			{
-				//left-right case, up vectors are nearly parallel
-				//d1 is left d2
-				return -1;
-			}
-			else if (angle_upsDiff_deg > (180-lrTOupThresholdAngleDeg))
-			{
-				//left-right case, up vectors are nearly opposite
-				//d1 is right d2
-				return +1;
-			}
-
-			//up-down case                 down  up
-			return d1tod2.dot(axisUp) > 0 ? -1 : +1;
-		};
-
-
 		this.verboseComparator = (d1, d2) -> {
 			log.info("Comparing between: "+d1.getLabel()+" and "+d2.getLabel());
 			if (d1.equals(d2)) {
@@ -216,6 +163,61 @@ public class SlicesSorter extends AbstractDescendantsSorter {
 		};
 	}
 
+	@Override
+	public String getCacheKey() {
+		return "slices: " + keyOf(axisUp) + " " + keyOf(axisPoint) + " "
+				+ lrTOupThresholdAngleDeg + " " + layeringLowerCutoffAngleDeg + " " + layeringUpperCutoffAngleDeg;
+	}
+
+	@Override
+	void prepareKeys(final Keys k)
+	{
+		k.cosLayeringLower = cosOfDeg(layeringLowerCutoffAngleDeg);
+		k.cosLayeringUpper = cosOfDeg(layeringUpperCutoffAngleDeg);
+		k.cosLeftRight = cosOfDeg(lrTOupThresholdAngleDeg);
+		//NB: the centre depends on both daughters, nothing more to pre-fetch
+	}
+
+	/** the same decisions as in the verbose comparator, only on the pre-fetched keys */
+	@Override
+	int compareKeys(final Keys k, final int i, final int j)
+	{
+		final double[] p = k.pos;
+
+		//position exactly between the two daughters, projected onto the up axis
+		final double mx = (p[3*i]+p[3*j]) / 2.0, my = (p[3*i+1]+p[3*j+1]) / 2.0, mz = (p[3*i+2]+p[3*j+2]) / 2.0;
+		final double distOnUpAxis = (mx-axisPoint.x)*axisUp.x + (my-axisPoint.y)*axisUp.y + (mz-axisPoint.z)*axisUp.z;
+
+		//d1 -> centre
+		double cx = axisUp.x*distOnUpAxis + axisPoint.x - p[3*i];
+		double cy = axisUp.y*distOnUpAxis + axisPoint.y - p[3*i+1];
+		double cz = axisUp.z*distOnUpAxis + axisPoint.z - p[3*i+2];
+		double invLength = 1.0 / Math.sqrt(cx*cx + cy*cy + cz*cz);
+		cx *= invLength; cy *= invLength; cz *= invLength;
+
+		//d1 -> d2
+		double ux = p[3*j]-p[3*i], uy = p[3*j+1]-p[3*i+1], uz = p[3*j+2]-p[3*i+2];
+		invLength = 1.0 / Math.sqrt(ux*ux + uy*uy + uz*uz);
+		ux *= invLength; uy *= invLength; uz *= invLength;
+
+		//layering, see the verbose comparator
+		final double cos_d2d1c = cx*ux + cy*uy + cz*uz;
+		if (cos_d2d1c >= k.cosLayeringLower) return +1;
+		else if (cos_d2d1c <= k.cosLayeringUpper) return -1;
+
+		//side-by-side configuration, triangle's up = (d1 -> d2) x (d1 -> c)
+		double tx = uy*cz - uz*cy, ty = uz*cx - ux*cz, tz = ux*cy - uy*cx;
+		invLength = 1.0 / Math.sqrt(tx*tx + ty*ty + tz*tz);
+		tx *= invLength; ty *= invLength; tz *= invLength;
+
+		final double cos_upsDiff = tx*axisUp.x + ty*axisUp.y + tz*axisUp.z;
+		if (cos_upsDiff > k.cosLeftRight) return -1;
+		else if (cos_upsDiff < -k.cosLeftRight) return +1;
+
+		//up-down case                                       down  up
+		return ux*axisUp.x + uy*axisUp.y + uz*axisUp.z > 0 ? -1 : +1;
+	}
+
 	@Override
 	public void exportDebugGraphics(final GraphExportable ge)
 	{
@@ -32,7 +32,7 @@ import cz.it4i.ulman.transfers.graphexport.GraphExportable;
 import org.joml.Vector3d;
 import static cz.it4i.ulman.transfers.graphexport.Utils.createVector3d;
 
-public class TriangleSorter extends AbstractDescendantsSorter {
+public class TriangleSorter extends AbstractGeometricSorter {
 	/** centre position (around which the lineage "revolves") */
 	final Vector3d centre;
 
@@ -63,86 +63,6 @@ public class TriangleSorter extends AbstractDescendantsSorter {
 
 		final double radToDegFactor = 180.0 / Math.PI;
 
-		this.comparator = (d1, d2) -> {
-			if (d1.equals(d2)) return 0;
-
-			final Vector3d d1pos = createVector3d(d1);
-			final Vector3d d2pos = createVector3d(d2);
-
-			//super useful shortcuts...
-			final Vector3d d1tod2 = new Vector3d(d2pos).sub(d1pos).normalize();
-			final Vector3d d1toc  = new Vector3d(centre).sub(d1pos).normalize();
-
-			//layering:
-			//
-			//check the angle between d1->centre and d1->d2,
-			//does it carry a sign of starting two layers?
-			double angle_d2d1c_deg = Math.acos( d1toc.dot(d1tod2) ) *radToDegFactor;
-			//d2 is closer to centre than d1
-			if (angle_d2d1c_deg <= layeringLowerCutoffAngleDeg) return +1;
-				//d1 is closer to centre than d2
-			else if (angle_d2d1c_deg >= layeringUpperCutoffAngleDeg) return -1;
-			//NB: tree of a daughter closer to the centre is drawn first (in left)
-
-			//side-by-side configuration:
-			//
-			//consider a triangle/plane given by d1,d2 and c,
-			//to tell if d1 is left from d2 within this plane, we need an "up" vector
-			//'cause left-right gets reversed if you're up-side-down
-			//
-			//for the outside global observer (as if standing on the ground), the left wing of
-			//a rolled-over plane is in fact the plane's right wing (plane's local un-anchored view)
-			final Vector3d triangleUp = new Vector3d(d1tod2).cross(d1toc).normalize();
-
-			//find the most parallel axis (aka the most relevant anchor) to the triangle's up vector
-			double bestParallelAng = Math.PI / 2.0;
-			AxisName bestAxis = AxisName.NONE;
-			boolean positiveDirOfBestAxis = true;
-
-			double angle = Math.acos( axisC.dot(triangleUp) );
-			if (angle < bestParallelAng) {
-				bestAxis = AxisName.C_ZZ;
-				positiveDirOfBestAxis = true;
-				bestParallelAng = angle;
-			}
-			if (angle > (Math.PI-bestParallelAng)) {
-				bestAxis = AxisName.C_ZZ;
-				positiveDirOfBestAxis = false;
-				bestParallelAng = Math.PI - angle;
-			}
-
-			angle = Math.acos( axisB.dot(triangleUp) );
-			if (angle < bestParallelAng) {
-				bestAxis = AxisName.B_YY;
-				positiveDirOfBestAxis = true;
-				bestParallelAng = angle;
-			}
-			if (angle > (Math.PI-bestParallelAng)) {
-				bestAxis = AxisName.B_YY;
-				positiveDirOfBestAxis = false;
-				bestParallelAng = Math.PI - angle;
-			}
-
-			angle = Math.acos( axisA.dot(triangleUp) );
-			if (angle < bestParallelAng) {
-				bestAxis = AxisName.A_XX;
-				positiveDirOfBestAxis = true;
-				bestParallelAng = angle;
-			}
-			if (angle > (Math.PI-bestParallelAng)) {
-				bestAxis = AxisName.A_XX;
-				positiveDirOfBestAxis = false;
-				bestParallelAng = Math.PI - angle;
-			}
-
-			System.out.println("Best axis: "+(positiveDirOfBestAxis ? "positive ":"negative ")+bestAxis);
-			System.out.println("Best angle: "+bestParallelAng*radToDegFactor+" deg");
-			//NB: super.log might not be set here (in this non-verbose regime)
-
-			return positiveDirOfBestAxis? -1 : +1;
-		};
-
-
 		this.verboseComparator = (d1, d2) -> {
 			log.info("Comparing between: "+d1.getLabel()+" and "+d2.getLabel());
 			if (d1.equals(d2)) {
@@ -249,8 +169,67 @@ public class TriangleSorter extends AbstractDescendantsSorter {
 		};
 	}
 
+	@Override
+	public String getCacheKey() {
+		return "triangle: " + keyOf(centre) + " " + keyOf(axisA) + " " + keyOf(axisB) + " "
+				+ layeringLowerCutoffAngleDeg + " " + layeringUpperCutoffAngleDeg;
+	}
+
 	public enum AxisName { A_XX,B_YY,C_ZZ,NONE };
 
+	@Override
+	void prepareKeys(final Keys k)
+	{
+		k.cosLayeringLower = cosOfDeg(layeringLowerCutoffAngleDeg);
+		k.cosLayeringUpper = cosOfDeg(layeringUpperCutoffAngleDeg);
+		final double[] p = k.pos;
+		for (int i = 0; i < k.size; ++i)
+			normalize(centre.x-p[3*i], centre.y-p[3*i+1], centre.z-p[3*i+2], k.toCentre, 3*i);
+	}
+
+	/** the same decisions as in the verbose comparator, only on the pre-fetched keys */
+	@Override
+	int compareKeys(final Keys k, final int i, final int j)
+	{
+		final double[] p = k.pos;
+		final double[] c = k.toCentre;
+
+		//d1 -> d2
+		double ux = p[3*j]-p[3*i], uy = p[3*j+1]-p[3*i+1], uz = p[3*j+2]-p[3*i+2];
+		double invLength = 1.0 / Math.sqrt(ux*ux + uy*uy + uz*uz);
+		ux *= invLength; uy *= invLength; uz *= invLength;
+		final double cx = c[3*i], cy = c[3*i+1], cz = c[3*i+2];
+
+		//layering, see the verbose comparator
+		final double cos_d2d1c = cx*ux + cy*uy + cz*uz;
+		if (cos_d2d1c >= k.cosLayeringLower) return +1;
+		else if (cos_d2d1c <= k.cosLayeringUpper) return -1;
+
+		//side-by-side configuration, triangle's up = (d1 -> d2) x (d1 -> c)
+		double tx = uy*cz - uz*cy, ty = uz*cx - ux*cz, tz = ux*cy - uy*cx;
+		invLength = 1.0 / Math.sqrt(tx*tx + ty*ty + tz*tz);
+		tx *= invLength; ty *= invLength; tz *= invLength;
+
+		//the most parallel axis to the triangle's up vector, the angles are compared
+		//as cosines (the best one starts at cos(90 deg) = 0), only its direction matters
+		double bestParallelCos = 0;
+		boolean positiveDirOfBestAxis = true;
+
+		double cos = tx*axisC.x + ty*axisC.y + tz*axisC.z;
+		if (cos > bestParallelCos) { positiveDirOfBestAxis = true; bestParallelCos = cos; }
+		if (cos < -bestParallelCos) { positiveDirOfBestAxis = false; bestParallelCos = -cos; }
+
+		cos = tx*axisB.x + ty*axisB.y + tz*axisB.z;
+		if (cos > bestParallelCos) { positiveDirOfBestAxis = true; bestParallelCos = cos; }
+		if (cos < -bestParallelCos) { positiveDirOfBestAxis = false; bestParallelCos = -cos; }
+
+		cos = tx*axisA.x + ty*axisA.y + tz*axisA.z;
+		if (cos > bestParallelCos) { positiveDirOfBestAxis = true; bestParallelCos = cos; }
+		if (cos < -bestParallelCos) { positiveDirOfBestAxis = false; bestParallelCos = -cos; }
+
+		return positiveDirOfBestAxis? -1 : +1;
+	}
+
 	@Override
 	public void exportDebugGraphics(final GraphExportable ge)
 	{
@@ -0,0 +1,59 @@
+/*-
+ * #%L
+ * Online Mastodon Exports
+ * %%
+ * Copyright (C) 2021 - 2024 Vladimír Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cz.it4i.ulman.transfers.graphexport.ui;
+
+import cz.it4i.ulman.transfers.graphexport.BinaryLineageWriter;
+import org.mastodon.mamut.ProjectModel;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.widget.FileWidget;
+import java.io.File;
+
+@Plugin(type = Command.class, name = "Export into binary file")
+public class BinaryLineageWriterDlg extends AbstractGraphExportableDlg implements Command {
+	// ------ options and setup of this particular export mode ------
+	@Parameter(label = "Define .mlin file to save the lineage: ", style = FileWidget.SAVE_STYLE,
+		description = "Compact columnar file, read it with the BinaryLineageReader.")
+	File lineageFile;
+
+	/** used to store also the timepoints of the nodes */
+	@Parameter(persist = false, required = false)
+	ProjectModel mastodonProjectModel;
+
+	@Parameter
+	LogService logService;
+
+	// ------ after all options are set, the workhorse is to be created here ------
+	@Override
+	public void run() {
+		worker = new BinaryLineageWriter(lineageFile.getPath(), mastodonProjectModel, logService);
+	}
+}
@@ -30,11 +30,27 @@ package cz.it4i.ulman.transfers.graphexport.ui;
 
 import cz.it4i.ulman.transfers.graphexport.GraphStreamViewer;
 import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 @Plugin(type = Command.class, name = "Export into GraphStreamer Window")
 public class GraphStreamViewerDlg extends AbstractGraphExportableDlg implements Command {
 	// ------ options and setup of this particular export mode ------
+	@Parameter(label = "Open the window only after the lineage is loaded:",
+		description = "Much faster for large lineages, but nothing is shown while loading.")
+	boolean bulkMode = true;
+
+	@Parameter(label = "Show subtrees collapsed, expand them on click or zoom:",
+		description = "For huge lineages, only the shown part of the lineage is put into the window.")
+	boolean lodMode = false;
+
+	@Parameter(label = "Initially expanded generations:", min = "0")
+	int lodInitialDepth = 3;
+
+	@Parameter(label = "Keep the window updated with the lineage changes:",
+		description = "Cannot be combined with the collapsed subtrees, which take precedence.")
+	boolean liveMode = false;
+
 	@Override
 	void provideDefaults() {
 		xColumnWidth = 300;
@@ -43,6 +59,7 @@ public class GraphStreamViewerDlg extends AbstractGraphExportableDlg implements
 	// ------ after all options are set, the workhorse is to be created here ------
 	@Override
 	public void run() {
-		worker = new GraphStreamViewer("Mastodon Generated Lineage");
+		worker = new GraphStreamViewer("Mastodon Generated Lineage", bulkMode,
+				lodMode ? lodInitialDepth : -1, liveMode && !lodMode);
 	}
 }
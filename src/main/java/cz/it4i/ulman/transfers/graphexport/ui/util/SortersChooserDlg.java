@@ -34,10 +34,15 @@ import cz.it4i.ulman.transfers.graphexport.leftrightness.ui.PolesSorterDlg;
 import cz.it4i.ulman.transfers.graphexport.leftrightness.ui.SlicesSorterDlg;
 import cz.it4i.ulman.transfers.graphexport.leftrightness.ui.TriangleSorterDlg;
 
+import org.mastodon.collection.RefList;
 import org.mastodon.mamut.ProjectModel;
+import org.mastodon.mamut.model.Spot;
 import org.scijava.command.CommandService;
 import org.scijava.command.CommandModule;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
 /** util class that lists all known descendants sorters (if used
@@ -61,50 +66,65 @@ public class SortersChooserDlg {
 			final ProjectModel projectModel,
 			final String projectID)
 	throws ExecutionException, InterruptedException
+	{
+		return resolveSorterOfDaughters(chosenMethod, commandService, projectModel, projectID, Collections.emptyMap());
+	}
+
+	/** the same as above, the 'extraParams' are additionally handed over to the
+	 *  sorter's dialog, e.g. to have it fully parametrized when running headless */
+	public static DescendantsSorter resolveSorterOfDaughters(
+			final String chosenMethod,
+			final CommandService commandService,
+			final ProjectModel projectModel,
+			final String projectID,
+			final Map<String,Object> extraParams)
+	throws ExecutionException, InterruptedException
 	{
 		DescendantsSorter sorterOfDaughters = null; //intentionally, indicates a problem...
 
+		final Map<String,Object> params = new HashMap<>(10);
+		params.put("projectModel", projectModel);
+		params.put("projectID", projectID);
+
 		if (chosenMethod.equals(M_TRACKSCHEME)) {
-			sorterOfDaughters = listOfDaughters -> {}; //NB: no sorting
+			sorterOfDaughters = new DescendantsSorter() {
+				@Override
+				public void sort(RefList<Spot> listOfDaughters) {
+					//NB: no sorting
+				}
+
+				@Override
+				public String getCacheKey() {
+					return M_TRACKSCHEME;
+				}
+			};
 		}
 		else if (chosenMethod.equals(M_ALPHANUM)) {
 			sorterOfDaughters = new AbstractDescendantsSorter();
 		}
 		else if (chosenMethod.equals(M_POLES)) {
 			//explicit centre
-			final CommandModule m = commandService
-					.run(PolesSorterDlg.class, true,
-							"projectModel", projectModel,
-							"projectID", projectID,
-							"useImplicitCentre", false)
-					.get();
+			params.put("useImplicitCentre", false);
+			params.putAll(extraParams);
+			final CommandModule m = commandService.run(PolesSorterDlg.class, true, params).get();
 			if (!m.isCanceled()) sorterOfDaughters = ((PolesSorterDlg)m.getCommand()).sorter;
 		}
 		else if (chosenMethod.equals(M_POLES_IC)) {
 			//implicit centre
-			final CommandModule m = commandService
-					.run(PolesSorterDlg.class, true,
-							"projectModel", projectModel,
-							"projectID", projectID,
-							"useImplicitCentre", true,
-							"spotCentreName", "implicit_centre") //providedNotBeVisibleInTheGUI
-					.get();
+			params.putAll(extraParams);
+			params.put("useImplicitCentre", true);
+			params.put("spotCentreName", "implicit_centre"); //providedNotBeVisibleInTheGUI
+			final CommandModule m = commandService.run(PolesSorterDlg.class, true, params).get();
 			if (!m.isCanceled()) sorterOfDaughters = ((PolesSorterDlg)m.getCommand()).sorter;
 		}
 		else if (chosenMethod.equals(M_SLICES)) {
-			final CommandModule m = commandService
-					.run(SlicesSorterDlg.class, true,
-							"projectModel", projectModel,
-							"projectID",projectID)
-					.get();
+			params.putAll(extraParams);
+			final CommandModule m = commandService.run(SlicesSorterDlg.class, true, params).get();
 			if (!m.isCanceled()) sorterOfDaughters = ((SlicesSorterDlg)m.getCommand()).sorter;
 		}
 		else if (chosenMethod.equals(M_TRIANGLE)) {
-			final CommandModule m = commandService
-					.run(TriangleSorterDlg.class, true,
-							"projectModel", projectModel,
-							"projectID",projectID)
-					.get();
+			params.putAll(extraParams);
+			final CommandModule m = commandService.run(TriangleSorterDlg.class, true, params).get();
 			if (!m.isCanceled()) sorterOfDaughters = ((TriangleSorterDlg)m.getCommand()).sorter;
 		}
 
@@ -28,7 +28,7 @@
  */
 package cz.it4i.ulman.transfers.graphexport.ui;
 
-import cz.it4i.ulman.transfers.graphexport.yEdGraphMLWriter;
+import cz.it4i.ulman.transfers.graphexport.GraphMLStreamWriter;
 import org.scijava.command.Command;
 import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
@@ -39,7 +39,8 @@ import java.io.File;
 @Plugin(type = Command.class, name = "Export into yEd")
 public class yEdGraphMLWriterDlg extends AbstractGraphExportableDlg implements Command {
 	// ------ options and setup of this particular export mode ------
-	@Parameter(label = "Define .graphml file to save the lineage: ", style = FileWidget.SAVE_STYLE)
+	@Parameter(label = "Define .graphml file to save the lineage: ", style = FileWidget.SAVE_STYLE,
+		description = "Name it .graphml.gz to have it compressed.")
 	File graphMLfile;
 
 	@Override
@@ -54,6 +55,6 @@ public class yEdGraphMLWriterDlg extends AbstractGraphExportableDlg implements C
 	// ------ after all options are set, the workhorse is to be created here ------
 	@Override
 	public void run() {
-		worker = new yEdGraphMLWriter(graphMLfile.getPath(),logService);
+		worker = new GraphMLStreamWriter(graphMLfile.getPath(),logService);
 	}
 }
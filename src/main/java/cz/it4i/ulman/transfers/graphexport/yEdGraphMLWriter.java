@@ -35,7 +35,7 @@ import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 
-public class yEdGraphMLWriter extends AbstractGraphExporter implements GraphExportable
+public class yEdGraphMLWriter extends AbstractGraphExporter implements GraphExportableV2
 {
 	// -----------------------------------------------------------------------------
 	private BufferedWriter file;
@@ -129,7 +129,9 @@ public class yEdGraphMLWriter extends AbstractGraphExporter implements GraphExpo
 	             final int width, final int height)
 	{
 		try {
-			file.write("    <node id=\""+id+"\">\n");
+			file.write("    <node id=\"");
+			file.write(id);
+			file.write("\">\n");
 			file.write("      <data key=\"d6\">\n");
 			file.write("        <y:ShapeNode>\n");
 			file.write("          <y:Geometry height=\""+height+"\" width=\""+width+"\" x=\""+x+"\" y=\""+y+"\"/>\n");
@@ -146,12 +148,25 @@ public class yEdGraphMLWriter extends AbstractGraphExporter implements GraphExpo
 	}
 	// -----------------------------------------------------------------------------
 
+	/** writes the opening tag of the edge, whose ID is the concatenation of the nodes' IDs */
+	void writeEdgeHeader(final String fromId, final String toId)
+		throws IOException
+	{
+		file.write("    <edge id=\"");
+		file.write(fromId);
+		file.write(toId);
+		file.write("\" source=\"");
+		file.write(fromId);
+		file.write("\" target=\"");
+		file.write(toId);
+		file.write("\">\n");
+	}
+
 	/** straight edge */
-	void writeEdge(final String id,
-	               final String fromId, final String toId)
+	void writeEdge(final String fromId, final String toId)
 	{
 		try {
-			file.write("    <edge id=\""+id+"\" source=\""+fromId+"\" target=\""+toId+"\">\n");
+			writeEdgeHeader(fromId, toId);
 			file.write("      <data key=\"d10\">\n");
 			file.write("        <y:PolyLineEdge>\n");
 			file.write("          <y:Path sx=\"0.0\" sy=\"0.0\" tx=\"0.0\" ty=\"0.0\"/>\n");
@@ -167,12 +182,11 @@ public class yEdGraphMLWriter extends AbstractGraphExporter implements GraphExpo
 	}
 
 	/** edge bending around the point [bx,by] */
-	void writeEdge(final String id,
-	               final String fromId, final String toId,
+	void writeEdge(final String fromId, final String toId,
 	               final int bx, final int by)
 	{
 		try {
-			file.write("    <edge id=\""+id+"\" source=\""+fromId+"\" target=\""+toId+"\">\n");
+			writeEdgeHeader(fromId, toId);
 			file.write("      <data key=\"d10\">\n");
 			file.write("        <y:PolyLineEdge>\n");
 			file.write("          <y:Path sx=\"0.0\" sy=\"0.0\" tx=\"0.0\" ty=\"0.0\"><y:Point x=\""+bx+"\" y=\""+by+"\"/></y:Path>\n");
@@ -191,7 +205,7 @@ public class yEdGraphMLWriter extends AbstractGraphExporter implements GraphExpo
 	@Override
 	public void addStraightLine(final String fromId, final String toId)
 	{
-		writeEdge(fromId.concat(toId), fromId, toId);
+		writeEdge(fromId, toId);
 	}
 
 	@Override
@@ -216,7 +230,7 @@ public class yEdGraphMLWriter extends AbstractGraphExporter implements GraphExpo
 	public void addBendedLine(final String fromId, final String toId,
 	                          final int toX, final int toY, final int bendingOffsetY)
 	{
-		writeEdge(fromId.concat(toId), fromId, toId, toX+defaultNodeWidth/2,toY+bendingOffsetY);
+		writeEdge(fromId, toId, toX+defaultNodeWidth/2,toY+bendingOffsetY);
 	}
 
 	@Override
@@ -230,6 +244,44 @@ public class yEdGraphMLWriter extends AbstractGraphExporter implements GraphExpo
 	}
 	// -----------------------------------------------------------------------------
 
+	@Override
+	public void addNode(final int id,
+	                    final String label, final int colorRGB,
+	                    final int x, final int y)
+	{
+		addNode(Integer.toString(id), label,colorRGB, x,y, defaultNodeWidth,defaultNodeHeight);
+	}
+
+	@Override
+	public void addNode(final int id,
+	                    final String label, final int colorRGB,
+	                    final int x, final int y,
+	                    final int width, final int height)
+	{
+		addNode(Integer.toString(id), label,colorRGB, x,y, width,height);
+	}
+
+	@Override
+	public void addStraightLine(final int fromId, final int toId)
+	{
+		writeEdge(Integer.toString(fromId), Integer.toString(toId));
+	}
+
+	@Override
+	public void addBendedLine(final int fromId, final int toId,
+	                          final int toX, final int toY)
+	{
+		addBendedLine(fromId,toId, toX,toY, defaultBendingPointAbsoluteOffsetY);
+	}
+
+	@Override
+	public void addBendedLine(final int fromId, final int toId,
+	                          final int toX, final int toY, final int bendingOffsetY)
+	{
+		writeEdge(Integer.toString(fromId), Integer.toString(toId), toX+defaultNodeWidth/2,toY+bendingOffsetY);
+	}
+	// -----------------------------------------------------------------------------
+
 	public void runExample()
 	{
 		System.out.println("GraphML started");
@@ -0,0 +1,207 @@
+/*-
+ * #%L
+ * Online Mastodon Exports
+ * %%
+ * Copyright (C) 2021 - 2024 Vladimír Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cz.it4i.ulman.transfers.graphics;
+
+import cz.it4i.ulman.transfers.graphics.protocol.BucketsWithGraphics;
+import cz.it4i.ulman.transfers.graphics.protocol.ClientToServerGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Pretends to be a listening Blender but records all received graphics into a file instead.
+ *  It is reached with the "URL" in the form "file:" followed by the path of the recording,
+ *  and it lives in this JVM (as an in-process gRPC server), so the senders need no change.
+ *
+ *  The recording is a sequence of records, each is one byte telling the method that
+ *  delivered the graphics (REPLACE or ADD) followed by the length-delimited BatchOfGraphics.
+ *  The recording can be sent to a real Blender later with replay(). */
+public class GraphicsRecorder extends ClientToServerGrpc.ClientToServerImplBase {
+	public static final String URL_PREFIX = "file:";
+
+	public static final int RECORD_REPLACE = 1;
+	public static final int RECORD_ADD = 2;
+
+	public static boolean isRecordingUrl(final String url) {
+		return url.startsWith(URL_PREFIX);
+	}
+
+	/** returns a new channel to the recorder behind the given url, the recorder
+	 *  (and its file) is created with the first request of this url */
+	public static synchronized ManagedChannel channelFor(final String url)
+	throws IOException {
+		if (!RECORDERS.containsKey(url)) {
+			final GraphicsRecorder recorder = new GraphicsRecorder(new File(url.substring(URL_PREFIX.length())));
+			recorder.server = InProcessServerBuilder.forName(url)
+					.directExecutor()
+					.addService(recorder)
+					.build()
+					.start();
+			RECORDERS.put(url, recorder);
+		}
+		return InProcessChannelBuilder.forName(url).directExecutor().build();
+	}
+
+	/** stops all recorders and closes their files, the channels
+	 *  to them should have been closed already */
+	public static synchronized void closeAllRecordings()
+	throws IOException, InterruptedException {
+		for (GraphicsRecorder recorder : RECORDERS.values()) {
+			recorder.server.shutdown().awaitTermination(10, TimeUnit.SECONDS);
+			recorder.close();
+		}
+		RECORDERS.clear();
+	}
+
+	private static final Map<String, GraphicsRecorder> RECORDERS = new HashMap<>(5);
+
+	// ---------------------- one recorder ----------------------
+	private final OutputStream recording;
+	private Server server;
+
+	private GraphicsRecorder(final File recordingFile)
+	throws IOException {
+		recording = new BufferedOutputStream(new FileOutputStream(recordingFile), 1 << 20);
+	}
+
+	private synchronized void record(final int recordType, final BucketsWithGraphics.BatchOfGraphics batch) {
+		try {
+			recording.write(recordType);
+			batch.writeDelimitedTo(recording);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed recording the graphics: " + e.getMessage(), e);
+		}
+	}
+
+	private synchronized void flush() {
+		try {
+			recording.flush();
+		} catch (IOException e) {
+			throw new RuntimeException("Failed recording the graphics: " + e.getMessage(), e);
+		}
+	}
+
+	private synchronized void close()
+	throws IOException {
+		recording.close();
+	}
+
+	private StreamObserver<BucketsWithGraphics.BatchOfGraphics> recordingObserver(
+			final int recordType, final StreamObserver<BucketsWithGraphics.Empty> responseObserver) {
+		return new StreamObserver<BucketsWithGraphics.BatchOfGraphics>() {
+			@Override
+			public void onNext(BucketsWithGraphics.BatchOfGraphics batch) {
+				record(recordType, batch);
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				flush();
+			}
+
+			@Override
+			public void onCompleted() {
+				flush();
+				responseObserver.onNext(BucketsWithGraphics.Empty.getDefaultInstance());
+				responseObserver.onCompleted();
+			}
+		};
+	}
+
+	@Override
+	public void introduceClient(BucketsWithGraphics.ClientHello request,
+	                            StreamObserver<BucketsWithGraphics.Empty> responseObserver) {
+		responseObserver.onNext(BucketsWithGraphics.Empty.getDefaultInstance());
+		responseObserver.onCompleted();
+	}
+
+	@Override
+	public void showMessage(BucketsWithGraphics.SignedTextMessage request,
+	                        StreamObserver<BucketsWithGraphics.Empty> responseObserver) {
+		responseObserver.onNext(BucketsWithGraphics.Empty.getDefaultInstance());
+		responseObserver.onCompleted();
+	}
+
+	@Override
+	public StreamObserver<BucketsWithGraphics.BatchOfGraphics> addGraphics(
+			StreamObserver<BucketsWithGraphics.Empty> responseObserver) {
+		return recordingObserver(RECORD_ADD, responseObserver);
+	}
+
+	@Override
+	public StreamObserver<BucketsWithGraphics.BatchOfGraphics> replaceGraphics(
+			StreamObserver<BucketsWithGraphics.Empty> responseObserver) {
+		return recordingObserver(RECORD_REPLACE, responseObserver);
+	}
+
+	// ---------------------- replaying ----------------------
+	/** sends the recorded graphics to the given stubs, the batches recorded from
+	 *  the replaceGraphics() are sent within one stream, the same for addGraphics(),
+	 *  returns the number of sent batches */
+	public static long replay(final File recordingFile, final ClientToServerGrpc.ClientToServerStub comm)
+	throws IOException {
+		StreamObserver<BucketsWithGraphics.BatchOfGraphics> replaceSender = null;
+		StreamObserver<BucketsWithGraphics.BatchOfGraphics> addSender = null;
+		long cnt = 0;
+
+		try (InputStream in = new BufferedInputStream(new FileInputStream(recordingFile), 1 << 20)) {
+			int recordType;
+			while ((recordType = in.read()) != -1) {
+				final BucketsWithGraphics.BatchOfGraphics batch = BucketsWithGraphics.BatchOfGraphics.parseDelimitedFrom(in);
+				if (batch == null) throw new IOException("Truncated recording " + recordingFile);
+
+				if (recordType == RECORD_REPLACE) {
+					if (replaceSender == null) replaceSender = comm.replaceGraphics(new EmptyIgnoringStreamObservers());
+					replaceSender.onNext(batch);
+				} else if (recordType == RECORD_ADD) {
+					if (addSender == null) addSender = comm.addGraphics(new EmptyIgnoringStreamObservers());
+					addSender.onNext(batch);
+				} else throw new IOException("Unknown record type " + recordType + " in " + recordingFile);
+				++cnt;
+			}
+		} finally {
+			if (replaceSender != null) replaceSender.onCompleted();
+			if (addSender != null) addSender.onCompleted();
+		}
+		return cnt;
+	}
+}
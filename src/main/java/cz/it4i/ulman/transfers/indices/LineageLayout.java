@@ -0,0 +1,488 @@
+/*-
+ * #%L
+ * Online Mastodon Exports
+ * %%
+ * Copyright (C) 2021 - 2024 Vladimír Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cz.it4i.ulman.transfers.indices;
+
+import cz.it4i.ulman.transfers.ProgressReporter;
+import cz.it4i.ulman.transfers.graphexport.leftrightness.DescendantsSorter;
+import org.mastodon.RefPool;
+import org.mastodon.collection.RefList;
+import org.mastodon.collection.ref.RefArrayList;
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.spatial.VertexPositionListener;
+import org.scijava.log.Logger;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+/**
+ * Layout of lineage trees in which the vertical axis shows generations (instead of time),
+ * and the horizontal axis is partitioned among the tracks. Every lineage tree is laid out
+ * on its own, in its own coordinates starting at x = 0, and the caller shifts the trees
+ * next to each other. Only the first spot of every track, a node, gets coordinates, which
+ * are stored per spot (keyed by pool index); the order of the nodes in which they shall be
+ * exported, and the daughters of every node, are stored per tree.
+ *
+ * The layout is cached (see getFor()) per graph and per layout key, which shall capture
+ * everything the layout depends on (the sorter, the selection, the column width...). Changes
+ * of the graph and of the spots positions only mark the touched spots, and only the trees of
+ * these are laid out again on the next call to update(), in parallel if there are more of them.
+ */
+public class LineageLayout implements GraphListener<Spot, Link>, VertexPositionListener<Spot> {
+	// --------------------- external ---------------------
+	/** how many layouts (of different keys) are kept per graph */
+	public static final int MAX_CACHED_LAYOUTS = 4;
+
+	private static final Map<ModelGraph, Map<String, LineageLayout>> LAYOUTS = new WeakHashMap<>();
+
+	/** returns the cached layout of the graph for the given key, creating and registering
+	 *  it first if needed; if the key is null, a new layout that is not cached is returned */
+	public static synchronized LineageLayout getFor(final ModelGraph graph, final String layoutKey) {
+		if (layoutKey == null) return new LineageLayout(graph, false);
+
+		final Map<String, LineageLayout> layouts = LAYOUTS.computeIfAbsent(graph,
+				g -> new LinkedHashMap<String, LineageLayout>(2*MAX_CACHED_LAYOUTS, 0.75f, true) {
+					@Override
+					protected boolean removeEldestEntry(Map.Entry<String, LineageLayout> eldest) {
+						if (size() <= MAX_CACHED_LAYOUTS) return false;
+						eldest.getValue().unregister();
+						return true;
+					}
+				});
+		return layouts.computeIfAbsent(layoutKey, k -> new LineageLayout(graph, true));
+	}
+
+	/** lays out the trees of the given roots unless their layout is cached and still valid,
+	 *  it is expected that the caller holds the graph's read lock (to prevent changes during
+	 *  this and subsequent queries); the parameters of the layout must match the layout key
+	 *  with which this layout was obtained, the 'debugLogger' and 'progress' may be null */
+	public synchronized void update(final int[] roots,
+	                                final DescendantsSorter sorter,
+	                                final Predicate<Spot> isEligible,
+	                                final int columnWidth,
+	                                final Logger debugLogger,
+	                                final ProgressReporter progress) {
+		final ModelGraph graph = graphRef.get();
+		if (graph == null) return;
+
+		if (needsFullRebuild) {
+			Arrays.fill(trees, null);
+		} else {
+			//trees with a touched spot must be laid out again
+			for (int idx = touchedSpots.nextSetBit(0); idx >= 0; idx = touchedSpots.nextSetBit(idx+1))
+				if (idx < spotRoot.length && spotRoot[idx] != -1) dropTree(spotRoot[idx]);
+		}
+		needsFullRebuild = false;
+		touchedSpots.clear();
+
+		//which trees are to be laid out?
+		final int[] todo = new int[roots.length];
+		int noOfTodo = 0;
+		for (int root : roots) {
+			ensureSpotsCapacity(root+1);
+			if (trees[root] == null) todo[noOfTodo++] = root;
+			else if (progress != null) progress.addSpots(trees[root].noOfSpots);
+		}
+
+		if (debugLogger != null || noOfTodo < 2) {
+			//sequentially, e.g. to keep the sorter's report readable
+			final Worker worker = new Worker(graph, sorter, isEligible, columnWidth, debugLogger, progress);
+			for (int i = 0; i < noOfTodo; ++i) trees[todo[i]] = worker.layoutTree(todo[i]);
+			worker.release();
+			return;
+		}
+
+		//the trees are independent of each other, every one is laid out in its own coordinates
+		//and so they can be laid out in parallel; the per-spot arrays must not be re-allocated
+		//while the workers are writing into them, so they are made large enough in advance
+		int maxSpotIdx = 0;
+		for (Spot spot : graph.vertices()) maxSpotIdx = Math.max(maxSpotIdx, spot.getInternalPoolIndex());
+		ensureSpotsCapacity(maxSpotIdx+1);
+
+		IntStream.range(0, noOfTodo).parallel().forEach(i -> {
+			final Worker worker = new Worker(graph, sorter, isEligible, columnWidth, null, progress);
+			trees[todo[i]] = worker.layoutTree(todo[i]);
+			worker.release();
+		});
+	}
+
+	/** returns the layout of the tree of the given root (pool index), or null if not laid out */
+	public Tree getTree(final int rootIdx) {
+		return rootIdx < trees.length ? trees[rootIdx] : null;
+	}
+
+	/** returns the x-coordinate of the node (pool index), relative to its tree */
+	public int getX(final int nodeIdx) {
+		return spotX[nodeIdx];
+	}
+
+	/** returns the generation of the node (pool index) within its tree */
+	public int getGeneration(final int nodeIdx) {
+		return spotGeneration[nodeIdx];
+	}
+
+	/** Layout of one lineage tree. */
+	public static class Tree {
+		/** total width of the tree */
+		public final int width;
+		/** the nodes (pool indices) in the order in which they shall be exported (post-order) */
+		public final int[] nodes;
+		/** the daughters of the k-th node are daughters[daughtersStart[k]] till daughters[daughtersStart[k+1]-1] */
+		public final int[] daughtersStart;
+		/** the daughter nodes (pool indices), sorted for every node */
+		public final int[] daughters;
+		/** all spots of the tree, not only the nodes */
+		public final int noOfSpots;
+
+		Tree(final int width, final int[] nodes, final int[] daughtersStart, final int[] daughters, final int noOfSpots) {
+			this.width = width;
+			this.nodes = nodes;
+			this.daughtersStart = daughtersStart;
+			this.daughters = daughters;
+			this.noOfSpots = noOfSpots;
+		}
+	}
+
+	// --------------------- internal ---------------------
+	//NB: only a weak reference, the registry would otherwise keep all graphs alive
+	private final WeakReference<ModelGraph> graphRef;
+	private final boolean isListening;
+
+	private LineageLayout(final ModelGraph graph, final boolean listenToChanges) {
+		graphRef = new WeakReference<>(graph);
+		isListening = listenToChanges;
+		if (listenToChanges) {
+			graph.addGraphListener(this);
+			graph.addVertexPositionListener(this);
+		}
+	}
+
+	private void unregister() {
+		final ModelGraph graph = graphRef.get();
+		if (graph == null || !isListening) return;
+		graph.removeGraphListener(this);
+		graph.removeVertexPositionListener(this);
+	}
+
+	//per spot (pool index)
+	private int[] spotRoot = new int[0]; //root of the tree the spot was laid out in, or -1
+	private int[] spotX = new int[0];
+	private int[] spotGeneration = new int[0];
+	//per root (pool index)
+	private Tree[] trees = new Tree[0];
+
+	//changes since the last update()
+	private boolean needsFullRebuild = true;
+	private final BitSet touchedSpots = new BitSet();
+
+	private void ensureSpotsCapacity(final int size) {
+		if (size <= spotRoot.length) return;
+		final int newSize = Math.max(size, spotRoot.length + (spotRoot.length >> 1));
+		final int oldSize = spotRoot.length;
+		spotRoot = Arrays.copyOf(spotRoot, newSize);
+		spotX = Arrays.copyOf(spotX, newSize);
+		spotGeneration = Arrays.copyOf(spotGeneration, newSize);
+		trees = Arrays.copyOf(trees, newSize);
+		Arrays.fill(spotRoot, oldSize, newSize, -1);
+	}
+
+	private void dropTree(final int rootIdx) {
+		if (rootIdx < trees.length) trees[rootIdx] = null;
+	}
+
+	/** Lays out trees, one tree per call of layoutTree(). The trees are walked in post-order
+	 *  with an explicit stack (and not recursively), so that arbitrarily deep lineages can be
+	 *  processed; the stack as well as all other scratch data are primitive arrays that are
+	 *  re-used for all trees, and only a fixed set of refs is used. */
+	private class Worker {
+		final ModelGraph graph;
+		final RefPool<Spot> pool;
+		final DescendantsSorter sorter;
+		final Predicate<Spot> isEligible;
+		final int columnWidth;
+		final Logger debugLogger;
+		final ProgressReporter progress;
+
+		final Spot spot; //aux spot reference
+		final Spot fRef; //spot's ancestor buddy (forward)
+		final Spot tRef; //tmp reference on spot
+		final Link lRef; //link reference
+		final RefList<Spot> daughterList;
+
+		//the stack of the opened (not yet finished) tree nodes, one per generation;
+		//a node is the first spot of a track, which ends with a division or a leaf
+		int[] nodeIdx = new int[64];
+		int[] nodeXLeft = new int[64];
+		int[] nodeXRight = new int[64];
+		int[] nodeDaughtersStart = new int[64]; //first daughter of the node in the 'daughters'
+		int[] nodeDaughtersCount = new int[64]; //-1 until the node's track is walked through
+		int[] nodeNextDaughter = new int[64];   //daughter to be processed next
+
+		//the stack of the (already sorted) daughters of the opened nodes
+		int[] daughters = new int[256];
+
+		//the output of the current tree
+		int[] outNodes = new int[256];
+		int[] outDaughtersStart = new int[257];
+		int[] outDaughters = new int[256];
+		int noOfOutNodes, noOfOutDaughters, noOfSpots;
+
+		Worker(final ModelGraph graph, final DescendantsSorter sorter, final Predicate<Spot> isEligible,
+		       final int columnWidth, final Logger debugLogger, final ProgressReporter progress) {
+			this.graph = graph;
+			this.pool = graph.vertices().getRefPool();
+			this.sorter = sorter;
+			this.isEligible = isEligible;
+			this.columnWidth = columnWidth;
+			this.debugLogger = debugLogger;
+			this.progress = progress;
+			spot = graph.vertices().createRef();
+			fRef = graph.vertices().createRef();
+			tRef = graph.vertices().createRef();
+			lRef = graph.edgeRef();
+			daughterList = new RefArrayList<>(pool,3);
+		}
+
+		void release() {
+			graph.vertices().releaseRef(spot);
+			graph.vertices().releaseRef(fRef);
+			graph.vertices().releaseRef(tRef);
+			graph.releaseRef(lRef);
+		}
+
+		/** lays out the tree induced with the given root (pool index) */
+		Tree layoutTree(final int rootIdx) {
+			noOfOutNodes = 0;
+			noOfOutDaughters = 0;
+			noOfSpots = 0;
+
+			int depth = 0; //NB: equals to the generation of the top node
+			int daughtersTop = 0;
+			openNode(0, rootIdx);
+
+			while (true) {
+				if (nodeDaughtersCount[depth] == -1) {
+					//new node: walk along its track until its division or end
+					final int cnt = walkTrack(nodeIdx[depth], rootIdx);
+					nodeDaughtersCount[depth] = cnt;
+					nodeDaughtersStart[depth] = daughtersTop;
+					if (cnt > 1) {
+						if (daughtersTop + cnt > daughters.length) daughters = Arrays.copyOf(daughters, 2*(daughtersTop + cnt));
+						for (int i = 0; i < cnt; ++i) daughters[daughtersTop++] = daughterList.get(i, tRef).getInternalPoolIndex();
+					}
+				}
+
+				final int cnt = nodeDaughtersCount[depth];
+				if (cnt > 1 && nodeNextDaughter[depth] < cnt) {
+					//descend into the next daughter, its subtree starts where the previous ended
+					final int daughter = daughters[nodeDaughtersStart[depth] + nodeNextDaughter[depth]];
+					openNode(++depth, daughter);
+					nodeXLeft[depth] = nodeXRight[depth-1];
+					nodeXRight[depth] = nodeXRight[depth-1];
+					continue;
+				}
+
+				//all daughters are done (or none exists): place this node, and close it
+				final int node = nodeIdx[depth];
+				if (cnt > 1) {
+					final int first = daughters[nodeDaughtersStart[depth]];
+					final int last = daughters[nodeDaughtersStart[depth]+cnt-1];
+					spotX[node] = (spotX[first] + spotX[last])/2;
+				} else {
+					//we're a leaf -> pretend a subtree of single column width
+					nodeXRight[depth] += columnWidth;
+					spotX[node] = (nodeXRight[depth] + nodeXLeft[depth])/2;
+				}
+				spotGeneration[node] = depth;
+				outputNode(node, cnt > 1 ? nodeDaughtersStart[depth] : 0, cnt > 1 ? cnt : 0);
+				if (cnt > 1) daughtersTop = nodeDaughtersStart[depth];
+
+				final int width = nodeXRight[depth] - nodeXLeft[depth];
+				if (depth == 0) {
+					outDaughtersStart[noOfOutNodes] = noOfOutDaughters;
+					return new Tree(width,
+							Arrays.copyOf(outNodes, noOfOutNodes),
+							Arrays.copyOf(outDaughtersStart, noOfOutNodes+1),
+							Arrays.copyOf(outDaughters, noOfOutDaughters),
+							noOfSpots);
+				}
+
+				//report to the mother node
+				--depth;
+				nodeXRight[depth] += width;
+				++nodeNextDaughter[depth];
+			}
+		}
+
+		private void openNode(final int depth, final int spotIdx) {
+			if (depth == nodeIdx.length) {
+				final int newSize = 2*depth;
+				nodeIdx = Arrays.copyOf(nodeIdx, newSize);
+				nodeXLeft = Arrays.copyOf(nodeXLeft, newSize);
+				nodeXRight = Arrays.copyOf(nodeXRight, newSize);
+				nodeDaughtersStart = Arrays.copyOf(nodeDaughtersStart, newSize);
+				nodeDaughtersCount = Arrays.copyOf(nodeDaughtersCount, newSize);
+				nodeNextDaughter = Arrays.copyOf(nodeNextDaughter, newSize);
+			}
+			nodeIdx[depth] = spotIdx;
+			nodeXLeft[depth] = 0;
+			nodeXRight[depth] = 0;
+			nodeDaughtersCount[depth] = -1;
+			nodeNextDaughter[depth] = 0;
+		}
+
+		private void outputNode(final int node, final int daughtersFrom, final int daughtersCnt) {
+			if (noOfOutNodes+1 >= outNodes.length) {
+				outNodes = Arrays.copyOf(outNodes, 2*outNodes.length);
+				outDaughtersStart = Arrays.copyOf(outDaughtersStart, outNodes.length+1);
+			}
+			if (noOfOutDaughters + daughtersCnt > outDaughters.length)
+				outDaughters = Arrays.copyOf(outDaughters, 2*(noOfOutDaughters + daughtersCnt));
+
+			outNodes[noOfOutNodes] = node;
+			outDaughtersStart[noOfOutNodes] = noOfOutDaughters;
+			++noOfOutNodes;
+			System.arraycopy(daughters, daughtersFrom, outDaughters, noOfOutDaughters, daughtersCnt);
+			noOfOutDaughters += daughtersCnt;
+		}
+
+		/** walks from the given spot along its track, returns the number of forward
+		 *  links at the track's end, and if there are more than one, the 'daughterList'
+		 *  holds them in the order given by the sorter */
+		private int walkTrack(final int startIdx, final int rootIdx) {
+			pool.getObject(startIdx, spot);
+			while (true)
+			{
+				ensureSpotsCapacity(spot.getInternalPoolIndex()+1);
+				spotRoot[spot.getInternalPoolIndex()] = rootIdx;
+				++noOfSpots;
+				if (progress != null) progress.addSpot();
+
+				//shortcut to the time of the current node/spot
+				final int time = spot.getTimepoint();
+
+				//find how many forward-references (time-wise) this spot has
+				int countForwardLinks = 0;
+
+				for (int n=0; n < spot.incomingEdges().size(); ++n)
+				{
+					spot.incomingEdges().get(n, lRef).getSource( fRef );
+					if (fRef.getTimepoint() > time && isEligible.test(fRef))
+					{
+						++countForwardLinks;
+						tRef.refTo(fRef); //keep the last used valid reference
+					}
+				}
+				for (int n=0; n < spot.outgoingEdges().size(); ++n)
+				{
+					spot.outgoingEdges().get(n, lRef).getTarget( fRef );
+					if (fRef.getTimepoint() > time && isEligible.test(fRef))
+					{
+						++countForwardLinks;
+						tRef.refTo(fRef);
+					}
+				}
+
+				if (countForwardLinks == 1)
+				{
+					//just a vertex on "a string", move over it
+					spot.refTo( tRef );
+					continue;
+				}
+
+				if (countForwardLinks > 1)
+				{
+					//branching point -> enumerate all descendants in the desired order
+					daughterList.clear();
+					for (int n=0; n < spot.incomingEdges().size(); ++n)
+					{
+						spot.incomingEdges().get(n, lRef).getSource( fRef );
+						if (fRef.getTimepoint() > time && isEligible.test(fRef)) daughterList.add(fRef);
+					}
+					for (int n=0; n < spot.outgoingEdges().size(); ++n)
+					{
+						spot.outgoingEdges().get(n, lRef).getTarget( fRef );
+						if (fRef.getTimepoint() > time && isEligible.test(fRef)) daughterList.add(fRef);
+					}
+					if (debugLogger != null) sorter.sort(daughterList,debugLogger);
+					else sorter.sort(daughterList);
+				}
+				return countForwardLinks;
+			}
+		}
+	}
+
+	// --------------------- listeners ---------------------
+	@Override
+	public synchronized void graphRebuilt() {
+		needsFullRebuild = true;
+	}
+
+	@Override
+	public synchronized void vertexAdded(final Spot vertex) {
+		touchedSpots.set(vertex.getInternalPoolIndex());
+	}
+
+	@Override
+	public synchronized void vertexRemoved(final Spot vertex) {
+		touchedSpots.set(vertex.getInternalPoolIndex());
+	}
+
+	@Override
+	public synchronized void edgeAdded(final Link edge) {
+		touchEdge(edge);
+	}
+
+	@Override
+	public synchronized void edgeRemoved(final Link edge) {
+		touchEdge(edge);
+	}
+
+	@Override
+	public synchronized void vertexPositionChanged(final Spot vertex) {
+		touchedSpots.set(vertex.getInternalPoolIndex());
+	}
+
+	private void touchEdge(final Link edge) {
+		final ModelGraph graph = graphRef.get();
+		if (graph == null) return;
+		final Spot ref = graph.vertexRef();
+		touchedSpots.set(edge.getSource(ref).getInternalPoolIndex());
+		touchedSpots.set(edge.getTarget(ref).getInternalPoolIndex());
+		graph.releaseRef(ref);
+	}
+}
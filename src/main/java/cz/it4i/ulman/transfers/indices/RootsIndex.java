@@ -0,0 +1,241 @@
+/*-
+ * #%L
+ * Online Mastodon Exports
+ * %%
+ * Copyright (C) 2021 - 2024 Vladimír Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cz.it4i.ulman.transfers.indices;
+
+import cz.it4i.ulman.transfers.graphexport.Utils;
+import org.mastodon.RefPool;
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.ProjectModel;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/**
+ * The roots of all lineage trees of the graph, that is, the spots without a predecessor
+ * (a linked spot from an earlier time point). The roots are found in one parallel pass over
+ * all spots, and the index is then kept up-to-date with the graph lazily, in the same fashion
+ * as the TrackSegmentsIndex: changes of the graph only mark the touched spots, and only these
+ * are re-examined on the next call to ensureUpToDate().
+ *
+ * The roots are reported ordered by their time points, and by their pool indices within
+ * the same time point.
+ */
+public class RootsIndex implements GraphListener<Spot, Link> {
+	// --------------------- external ---------------------
+	private static final Map<ModelGraph, RootsIndex> INDICES = new WeakHashMap<>();
+
+	/** returns the index of the project's graph, creating and registering it first if needed */
+	public static RootsIndex getFor(final ProjectModel projectModel) {
+		return getFor(projectModel.getModel().getGraph());
+	}
+
+	/** returns the index of the graph, creating and registering it first if needed */
+	public static synchronized RootsIndex getFor(final ModelGraph graph) {
+		return INDICES.computeIfAbsent(graph, RootsIndex::new);
+	}
+
+	/** updates the index if the graph has changed since the last call; it is expected that
+	 * the caller holds the graph's read lock (to prevent changes during this and subsequent queries) */
+	public synchronized void ensureUpToDate() {
+		final ModelGraph graph = graphRef.get();
+		if (graph == null) return;
+
+		if (needsFullRebuild || touchedSpots.cardinality() > graph.vertices().size()/4) {
+			fullRebuild(graph);
+		} else if (!touchedSpots.isEmpty()) {
+			partialRebuild(graph);
+		}
+		needsFullRebuild = false;
+		touchedSpots.clear();
+		removedSpots.clear();
+	}
+
+	/** returns pool indices of all roots in the order of their time points;
+	 *  the returned array is shared and must not be modified by the caller */
+	public synchronized int[] getRoots() {
+		if (sortedRoots == null) sortRoots();
+		return sortedRoots;
+	}
+
+	public synchronized int getNoOfRoots() {
+		return isRoot.cardinality();
+	}
+
+	public synchronized boolean isRoot(final Spot spot) {
+		return isRoot.get(spot.getInternalPoolIndex());
+	}
+
+	/** calls the 'action' on all roots in the order of their time points, the roots
+	 *  are provided in the 'ref' (which is thus changing with every call of the 'action') */
+	public void forEachRoot(final Spot ref, final Consumer<Spot> action) {
+		final RefPool<Spot> pool = pool();
+		for (int idx : getRoots()) action.accept(pool.getObject(idx, ref));
+	}
+
+	// --------------------- internal ---------------------
+	//NB: only a weak reference, the registry would otherwise keep all graphs alive
+	private final WeakReference<ModelGraph> graphRef;
+
+	private RootsIndex(final ModelGraph graph) {
+		graphRef = new WeakReference<>(graph);
+		graph.addGraphListener(this);
+	}
+
+	private RefPool<Spot> pool() {
+		return graphRef.get().vertices().getRefPool();
+	}
+
+	//per spot (pool index)
+	private final BitSet isRoot = new BitSet();
+	//the roots ordered by time, or null if needs to be (re)created
+	private int[] sortedRoots = null;
+
+	//changes since the last ensureUpToDate()
+	private boolean needsFullRebuild = true;
+	private final BitSet touchedSpots = new BitSet();
+	private final BitSet removedSpots = new BitSet();
+
+	/** how many spots one parallel task examines */
+	private static final int CHUNK_SIZE = 1 << 14;
+
+	private void fullRebuild(final ModelGraph graph) {
+		//list the spots first, the examination of their links is then done in parallel
+		final int[] spots = new int[graph.vertices().size()];
+		int noOfSpots = 0;
+		for (Spot spot : graph.vertices()) spots[noOfSpots++] = spot.getInternalPoolIndex();
+
+		//every chunk of spots flags its roots into its own bitset, these are merged afterwards
+		final int size = noOfSpots;
+		final int noOfChunks = (size + CHUNK_SIZE-1) / CHUNK_SIZE;
+		final BitSet[] chunkRoots = new BitSet[noOfChunks];
+		final RefPool<Spot> pool = graph.vertices().getRefPool();
+		IntStream.range(0, noOfChunks).parallel().forEach(chunk -> {
+			final BitSet roots = new BitSet();
+			final Spot sRef = graph.vertexRef();
+			final Spot nRef = graph.vertexRef();
+			final Link lRef = graph.edgeRef();
+			final int till = Math.min(size, (chunk+1) * CHUNK_SIZE);
+			for (int i = chunk * CHUNK_SIZE; i < till; ++i) {
+				final Spot spot = pool.getObject(spots[i], sRef);
+				if (Utils.findPredecessor(spot, nRef, lRef) == null) roots.set(spots[i]);
+			}
+			graph.releaseRef(lRef);
+			graph.releaseRef(nRef);
+			graph.releaseRef(sRef);
+			chunkRoots[chunk] = roots;
+		});
+
+		isRoot.clear();
+		for (BitSet roots : chunkRoots) isRoot.or(roots);
+		sortedRoots = null;
+	}
+
+	private void partialRebuild(final ModelGraph graph) {
+		final Spot sRef = graph.vertexRef();
+		final Spot nRef = graph.vertexRef();
+		final Link lRef = graph.edgeRef();
+		for (int idx = touchedSpots.nextSetBit(0); idx >= 0; idx = touchedSpots.nextSetBit(idx+1)) {
+			if (removedSpots.get(idx)) {
+				isRoot.clear(idx);
+				continue;
+			}
+			final Spot spot = pool().getObject(idx, sRef);
+			isRoot.set(idx, Utils.findPredecessor(spot, nRef, lRef) == null);
+		}
+		graph.releaseRef(lRef);
+		graph.releaseRef(nRef);
+		graph.releaseRef(sRef);
+		sortedRoots = null;
+	}
+
+	private void sortRoots() {
+		final ModelGraph graph = graphRef.get();
+		if (graph == null) {
+			sortedRoots = new int[0];
+			return;
+		}
+
+		//sort by time and pool index at once: time in the upper, index in the lower half of a long
+		final long[] keys = new long[isRoot.cardinality()];
+		final Spot ref = graph.vertexRef();
+		int i = 0;
+		for (int idx = isRoot.nextSetBit(0); idx >= 0; idx = isRoot.nextSetBit(idx+1))
+			keys[i++] = (long)pool().getObject(idx, ref).getTimepoint() << 32 | idx;
+		graph.releaseRef(ref);
+		Arrays.parallelSort(keys);
+
+		sortedRoots = new int[keys.length];
+		for (i = 0; i < keys.length; ++i) sortedRoots[i] = (int)keys[i];
+	}
+
+	// --------------------- GraphListener ---------------------
+	@Override
+	public synchronized void graphRebuilt() {
+		needsFullRebuild = true;
+	}
+
+	@Override
+	public synchronized void vertexAdded(final Spot vertex) {
+		removedSpots.clear(vertex.getInternalPoolIndex());
+		touchedSpots.set(vertex.getInternalPoolIndex());
+	}
+
+	@Override
+	public synchronized void vertexRemoved(final Spot vertex) {
+		removedSpots.set(vertex.getInternalPoolIndex());
+		touchedSpots.set(vertex.getInternalPoolIndex());
+	}
+
+	@Override
+	public synchronized void edgeAdded(final Link edge) {
+		touchEdge(edge);
+	}
+
+	@Override
+	public synchronized void edgeRemoved(final Link edge) {
+		touchEdge(edge);
+	}
+
+	private void touchEdge(final Link edge) {
+		final ModelGraph graph = graphRef.get();
+		if (graph == null) return;
+		final Spot ref = graph.vertexRef();
+		touchedSpots.set(edge.getSource(ref).getInternalPoolIndex());
+		touchedSpots.set(edge.getTarget(ref).getInternalPoolIndex());
+		graph.releaseRef(ref);
+	}
+}
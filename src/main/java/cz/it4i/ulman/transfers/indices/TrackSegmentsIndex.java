@@ -0,0 +1,373 @@
+/*-
+ * #%L
+ * Online Mastodon Exports
+ * %%
+ * Copyright (C) 2021 - 2024 Vladimír Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cz.it4i.ulman.transfers.indices;
+
+import cz.it4i.ulman.transfers.graphexport.Utils;
+import org.mastodon.RefPool;
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.ProjectModel;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Segmentation of the lineage trees into tracks (chains of spots between two divisions),
+ * which is built in one linear pass over the graph and which answers track-related questions
+ * (to which track a spot belongs, where the track starts and ends, from which division it
+ * emerged, in which generation) in O(1).
+ *
+ * Every spot, keyed by its pool index, knows only its track ID, the rest is stored per track.
+ * The index is shared among all users of the same graph (see getFor()), and it is kept up-to-date
+ * with the graph lazily: changes of the graph only mark the touched spots, and the lineage trees
+ * of these are re-segmented on the next call to ensureUpToDate().
+ *
+ * A spot's predecessor (successor) is any linked spot from an earlier (later) time point,
+ * this is consistent with how the lineages are traversed elsewhere in this package.
+ */
+public class TrackSegmentsIndex implements GraphListener<Spot, Link> {
+	// --------------------- external ---------------------
+	private static final Map<ModelGraph, TrackSegmentsIndex> INDICES = new WeakHashMap<>();
+
+	/** returns the index of the project's graph, creating and registering it first if needed */
+	public static synchronized TrackSegmentsIndex getFor(final ProjectModel projectModel) {
+		final ModelGraph graph = projectModel.getModel().getGraph();
+		return INDICES.computeIfAbsent(graph, TrackSegmentsIndex::new);
+	}
+
+	/** (re)builds the index if the graph has changed since the last call; it is expected that
+	 * the caller holds the graph's read lock (to prevent changes during this and subsequent queries) */
+	public synchronized void ensureUpToDate() {
+		final ModelGraph graph = graphRef.get();
+		if (graph == null) return;
+
+		if (needsFullRebuild
+				|| touchedSpots.cardinality() > graph.vertices().size()/4
+				|| noOfTracks > 2*graph.vertices().size() + 1024) {
+			fullRebuild(graph);
+		} else if (!touchedSpots.isEmpty()) {
+			partialRebuild(graph);
+		}
+		needsFullRebuild = false;
+		touchedSpots.clear();
+	}
+
+	/** returns ID of the track the spot belongs to, or -1 if the spot is unknown to the index */
+	public int getTrackID(final Spot spot) {
+		final int idx = spot.getInternalPoolIndex();
+		return idx < spotTrack.length ? spotTrack[idx] : -1;
+	}
+
+	/** returns ID of the track the spot belongs to, the index is brought up-to-date first
+	 * if the spot is unknown to it (e.g. it was just added); the getters below rely on it */
+	private int trackOf(final Spot spot) {
+		int tid = getTrackID(spot);
+		if (tid == -1) {
+			ensureUpToDate();
+			tid = getTrackID(spot);
+			if (tid == -1) throw new IllegalArgumentException("Spot "+spot.getLabel()
+					+" is not in the graph of this index (anymore).");
+		}
+		return tid;
+	}
+
+	/** returns (in the 'ref') the first spot of the spot's track */
+	public Spot getTrackStart(final Spot spot, final Spot ref) {
+		return pool().getObject(trackStart[trackOf(spot)], ref);
+	}
+
+	/** returns (in the 'ref') the last spot of the spot's track */
+	public Spot getTrackEnd(final Spot spot, final Spot ref) {
+		return pool().getObject(trackEnd[trackOf(spot)], ref);
+	}
+
+	/** returns (in the 'ref') the last spot of the mother track, or null if the spot's track starts with a root */
+	public Spot getParentDivision(final Spot spot, final Spot ref) {
+		final int idx = trackParentDivision[trackOf(spot)];
+		return idx == -1 ? null : pool().getObject(idx, ref);
+	}
+
+	/** returns ID of the lineage tree the spot belongs to, which is the track ID of the tree's root */
+	public int getTreeID(final Spot spot) {
+		return trackTree[trackOf(spot)];
+	}
+
+	/** returns (in the 'ref') the root of the spot's lineage tree */
+	public Spot getTreeRoot(final Spot spot, final Spot ref) {
+		return pool().getObject(trackStart[getTreeID(spot)], ref);
+	}
+
+	/** returns an upper bound (exclusive) on the track and tree IDs, useful to size dense tables */
+	public int getNoOfTracks() {
+		return noOfTracks;
+	}
+
+	/** returns the number of divisions between the spot and its root */
+	public int getGeneration(final Spot spot) {
+		return trackGeneration[trackOf(spot)];
+	}
+
+	public boolean isTrackStart(final Spot spot) {
+		return trackStart[trackOf(spot)] == spot.getInternalPoolIndex();
+	}
+
+	public boolean isTrackEnd(final Spot spot) {
+		return trackEnd[trackOf(spot)] == spot.getInternalPoolIndex();
+	}
+
+	/** returns true if the spot is the first spot of a track that emerged from a division */
+	public boolean isTrackStartAfterDivision(final Spot spot) {
+		final int tid = trackOf(spot);
+		return trackStart[tid] == spot.getInternalPoolIndex() && trackParentDivision[tid] != -1;
+	}
+
+	/** returns the number of successors of the spot: 1 inside a track, 0 for leaves, more for divisions */
+	public int getNoOfDaughters(final Spot spot) {
+		final int tid = trackOf(spot);
+		return trackEnd[tid] == spot.getInternalPoolIndex() ? trackDaughters[tid] : 1;
+	}
+
+	// --------------------- internal ---------------------
+	//NB: only a weak reference, the registry would otherwise keep all graphs alive
+	private final WeakReference<ModelGraph> graphRef;
+
+	private TrackSegmentsIndex(final ModelGraph graph) {
+		graphRef = new WeakReference<>(graph);
+		graph.addGraphListener(this);
+	}
+
+	private RefPool<Spot> pool() {
+		return graphRef.get().vertices().getRefPool();
+	}
+
+	//per spot (pool index)
+	private int[] spotTrack = new int[0];
+	private int[] spotStamp = new int[0];
+	private int currentStamp = 0;
+
+	//per track (track ID)
+	private int noOfTracks = 0;
+	private int[] trackStart = new int[0];
+	private int[] trackEnd = new int[0];
+	private int[] trackParentDivision = new int[0];
+	private int[] trackGeneration = new int[0];
+	private int[] trackDaughters = new int[0];
+	private int[] trackTree = new int[0];
+
+	//changes since the last ensureUpToDate()
+	private boolean needsFullRebuild = true;
+	private final BitSet touchedSpots = new BitSet();
+	private final BitSet removedSpots = new BitSet();
+
+	private void ensureSpotsCapacity(final int size) {
+		if (size <= spotTrack.length) return;
+		final int newSize = Math.max(size, spotTrack.length + (spotTrack.length >> 1));
+		final int oldSize = spotTrack.length;
+		spotTrack = Arrays.copyOf(spotTrack, newSize);
+		spotStamp = Arrays.copyOf(spotStamp, newSize);
+		Arrays.fill(spotTrack, oldSize, newSize, -1);
+	}
+
+	private int newTrack(final int startSpot, final int parentDivision, final int generation, final int tree) {
+		if (noOfTracks == trackStart.length) {
+			final int newSize = Math.max(1024, trackStart.length*2);
+			trackStart = Arrays.copyOf(trackStart, newSize);
+			trackEnd = Arrays.copyOf(trackEnd, newSize);
+			trackParentDivision = Arrays.copyOf(trackParentDivision, newSize);
+			trackGeneration = Arrays.copyOf(trackGeneration, newSize);
+			trackDaughters = Arrays.copyOf(trackDaughters, newSize);
+			trackTree = Arrays.copyOf(trackTree, newSize);
+		}
+		trackStart[noOfTracks] = startSpot;
+		trackEnd[noOfTracks] = startSpot;
+		trackParentDivision[noOfTracks] = parentDivision;
+		trackGeneration[noOfTracks] = generation;
+		trackDaughters[noOfTracks] = 0;
+		trackTree[noOfTracks] = tree == -1 ? noOfTracks : tree;
+		return noOfTracks++;
+	}
+
+	private void fullRebuild(final ModelGraph graph) {
+		noOfTracks = 0;
+		removedSpots.clear();
+		Arrays.fill(spotTrack, -1);
+		++currentStamp;
+
+		//every spot is reachable from some root
+		final RootsIndex roots = RootsIndex.getFor(graph);
+		roots.ensureUpToDate();
+
+		final Spot sRef = graph.vertexRef();
+		final Spot nRef = graph.vertexRef();
+		final Link lRef = graph.edgeRef();
+		for (int rootIdx : roots.getRoots()) segmentTree(rootIdx, sRef, nRef, lRef);
+		graph.releaseRef(lRef);
+		graph.releaseRef(nRef);
+		graph.releaseRef(sRef);
+	}
+
+	private void partialRebuild(final ModelGraph graph) {
+		++currentStamp;
+
+		final Spot sRef = graph.vertexRef();
+		final Spot nRef = graph.vertexRef();
+		final Link lRef = graph.edgeRef();
+		for (int idx = touchedSpots.nextSetBit(0); idx >= 0; idx = touchedSpots.nextSetBit(idx+1)) {
+			if (removedSpots.get(idx)) continue;
+			ensureSpotsCapacity(idx+1);
+
+			//find the root of the touched spot, and re-segment its whole tree (unless done already)
+			Spot root = pool().getObject(idx, sRef);
+			while (Utils.findPredecessor(root, nRef, lRef) != null) root.refTo(nRef);
+			if (spotStamp[root.getInternalPoolIndex()] != currentStamp)
+				segmentTree(root.getInternalPoolIndex(), sRef, nRef, lRef);
+		}
+		graph.releaseRef(lRef);
+		graph.releaseRef(nRef);
+		graph.releaseRef(sRef);
+	}
+
+	/** explicit-stack traversal of the tree, every popped item starts a new track */
+	private void segmentTree(final int rootIdx, final Spot sRef, final Spot nRef, final Link lRef) {
+		int[] stack = new int[16]; //pairs: track start spot, parent division spot
+		int stackSize = 0;
+		stack[stackSize++] = rootIdx;
+		stack[stackSize++] = -1;
+		int treeID = -1; //not known until the root's track is created
+
+		while (stackSize > 0) {
+			final int parentDivision = stack[--stackSize];
+			int spotIdx = stack[--stackSize];
+
+			final int generation = parentDivision == -1 ? 0 : trackGeneration[spotTrack[parentDivision]]+1;
+			final int tid = newTrack(spotIdx, parentDivision, generation, treeID);
+			if (treeID == -1) treeID = tid;
+
+			while (true) {
+				ensureSpotsCapacity(spotIdx+1);
+				spotTrack[spotIdx] = tid;
+				spotStamp[spotIdx] = currentStamp;
+				trackEnd[tid] = spotIdx;
+
+				final Spot spot = pool().getObject(spotIdx, sRef);
+				final int time = spot.getTimepoint();
+				int countForwardLinks = 0;
+				int lastSuccessor = -1;
+				for (int n = 0; n < spot.incomingEdges().size(); ++n) {
+					spot.incomingEdges().get(n, lRef).getSource(nRef);
+					if (nRef.getTimepoint() > time) {
+						++countForwardLinks;
+						lastSuccessor = nRef.getInternalPoolIndex();
+					}
+				}
+				for (int n = 0; n < spot.outgoingEdges().size(); ++n) {
+					spot.outgoingEdges().get(n, lRef).getTarget(nRef);
+					if (nRef.getTimepoint() > time) {
+						++countForwardLinks;
+						lastSuccessor = nRef.getInternalPoolIndex();
+					}
+				}
+
+				if (countForwardLinks == 1 && !isVisited(lastSuccessor)) {
+					//just a vertex on "a string", move over it
+					spotIdx = lastSuccessor;
+					continue;
+				}
+
+				trackDaughters[tid] = countForwardLinks;
+				if (countForwardLinks > 1) {
+					//division, every daughter starts its own track
+					for (int n = 0; n < spot.incomingEdges().size(); ++n) {
+						spot.incomingEdges().get(n, lRef).getSource(nRef);
+						if (nRef.getTimepoint() > time && !isVisited(nRef.getInternalPoolIndex())) {
+							if (stackSize+2 > stack.length) stack = Arrays.copyOf(stack, 2*stack.length);
+							stack[stackSize++] = nRef.getInternalPoolIndex();
+							stack[stackSize++] = spotIdx;
+						}
+					}
+					for (int n = 0; n < spot.outgoingEdges().size(); ++n) {
+						spot.outgoingEdges().get(n, lRef).getTarget(nRef);
+						if (nRef.getTimepoint() > time && !isVisited(nRef.getInternalPoolIndex())) {
+							if (stackSize+2 > stack.length) stack = Arrays.copyOf(stack, 2*stack.length);
+							stack[stackSize++] = nRef.getInternalPoolIndex();
+							stack[stackSize++] = spotIdx;
+						}
+					}
+				}
+				break;
+			}
+		}
+	}
+
+	/** was the spot already segmented during the current (re)build? (guards against merges) */
+	private boolean isVisited(final int spotIdx) {
+		return spotIdx < spotStamp.length && spotStamp[spotIdx] == currentStamp;
+	}
+
+	// --------------------- GraphListener ---------------------
+	@Override
+	public synchronized void graphRebuilt() {
+		needsFullRebuild = true;
+	}
+
+	@Override
+	public synchronized void vertexAdded(final Spot vertex) {
+		removedSpots.clear(vertex.getInternalPoolIndex());
+		touchedSpots.set(vertex.getInternalPoolIndex());
+	}
+
+	@Override
+	public synchronized void vertexRemoved(final Spot vertex) {
+		removedSpots.set(vertex.getInternalPoolIndex());
+	}
+
+	@Override
+	public synchronized void edgeAdded(final Link edge) {
+		touchEdge(edge);
+	}
+
+	@Override
+	public synchronized void edgeRemoved(final Link edge) {
+		touchEdge(edge);
+	}
+
+	private void touchEdge(final Link edge) {
+		final ModelGraph graph = graphRef.get();
+		if (graph == null) return;
+		final Spot ref = graph.vertexRef();
+		touchedSpots.set(edge.getSource(ref).getInternalPoolIndex());
+		touchedSpots.set(edge.getTarget(ref).getInternalPoolIndex());
+		graph.releaseRef(ref);
+	}
+}
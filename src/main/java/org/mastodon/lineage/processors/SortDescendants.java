@@ -28,6 +28,7 @@
  */
 package org.mastodon.lineage.processors;
 
+import cz.it4i.ulman.transfers.ProgressReporter;
 import cz.it4i.ulman.transfers.graphexport.leftrightness.DescendantsSorter;
 import cz.it4i.ulman.transfers.graphexport.ui.util.SortersChooserDlg;
 
@@ -39,6 +40,7 @@ import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
 import org.mastodon.mamut.model.Link;
 
+import org.scijava.app.StatusService;
 import org.scijava.log.Logger;
 import org.scijava.plugin.Plugin;
 import org.scijava.plugin.Parameter;
@@ -79,6 +81,9 @@ public class SortDescendants implements Command
 	@Parameter
 	private CommandService commandService;
 
+	@Parameter
+	private StatusService statusService;
+
 	private DescendantsSorter sorterOfDaughters;
 
 
@@ -102,15 +107,19 @@ public class SortDescendants implements Command
 			final RefList<Spot> daughterList = new RefArrayList<>(graph.vertices().getRefPool(),3);
 			final Link lRef = graph.edgeRef();
 			final Spot sRef = graph.vertices().createRef();
+			final ProgressReporter progress = new ProgressReporter(statusService, ownLogger, "Sorting daughters",
+					projectModel.getSelectionModel().isEmpty() ? graph.vertices().size()
+					: projectModel.getSelectionModel().getSelectedVertices().size());
 
 			//second: define spot handler that sorts its descendants
 			//NB: this is a single thread sweeping so we can afford re-usable refVariables sRef and lRef
 			final Consumer<Spot> handler = spot -> {
+				progress.addSpot();
+
 				//get direct descendants
 				daughterList.clear();
 				si.enlistDescendants(spot,daughterList);
 
-				//ownLogger.info("hello from "+spot.getLabel()+" which has "+daughterList.size()+" daughters"); //TODO REMOVE
 				if (daughterList.size() < 2) return;
 
 				//get new order
@@ -143,6 +152,7 @@ public class SortDescendants implements Command
 
 			graph.vertices().releaseRef(sRef);
 			graph.releaseRef(lRef);
+			progress.done();
 
 			ownLogger.info("processing "
 					+ (si.isSelectionEmpty ? "full" : "selected")
@@ -46,6 +46,10 @@ import org.mastodon.ui.coloring.GraphColorGenerator;
 import org.mastodon.ui.coloring.DefaultGraphColorGenerator;
 import org.mastodon.ui.coloring.TagSetGraphColorGenerator;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class BdvToBlenderView {
 	final ProjectModel projectModel;
 	MamutViewBdv viewBdv = null;
@@ -85,9 +89,10 @@ public class BdvToBlenderView {
 		//
 		//create a thread that would be watching over the listener and would take only
 		//the most recent data if no updates came from BDV for a little while
-		//(this is _delayed_ handling of the data, skipping over any intermediate changes)
+		//(this is _delayed_ handling of the data, skipping over any intermediate changes,
+		// and the delay adapts itself to how long the sending actually takes)
 		final BdvViewUpdateBlenderSenderThread blenderSenderThread
-				= new BdvViewUpdateBlenderSenderThread(bdvUpdateListener, 60);
+				= new BdvViewUpdateBlenderSenderThread(bdvUpdateListener, INITIAL_QUIET_PERIOD);
 
 		//register the BDV listener and start the thread
 		viewBdv.getViewerPanelMamut().renderTransformListeners().add(bdvUpdateListener);
@@ -123,25 +128,27 @@ public class BdvToBlenderView {
 
 		void somethingChanged() {
 			timeStampOfLastRequest = System.currentTimeMillis();
+			noOfRequestsSinceLastSend.incrementAndGet();
 			isLastRequestDataValid = true;
 			//System.out.println("detected new tp and some new transform");
 		}
 
-		boolean isLastRequestDataValid = false;
-		long timeStampOfLastRequest = 0;
+		volatile boolean isLastRequestDataValid = false;
+		volatile long timeStampOfLastRequest = 0;
+		/** incremented from the listeners' threads, reset from the sender thread */
+		final AtomicInteger noOfRequestsSinceLastSend = new AtomicInteger(0);
 	}
 
 	class BdvViewUpdateBlenderSenderThread extends Thread
 	{
 		final BdvViewUpdateListener dataSource;
-		final long updateInterval;
 		long lastUpdateTimeStamp = 0;
 		boolean keepWatching = true;
 		BdvViewUpdateBlenderSenderThread(final BdvViewUpdateListener dataSupplier,
-		                                 final long updateIntervalInMillis) {
+		                                 final long initialUpdateIntervalInMillis) {
 			super("Mastodon BDV updater to Blender");
 			dataSource = dataSupplier;
-			updateInterval = updateIntervalInMillis;
+			targetLatency = initialUpdateIntervalInMillis;
 		}
 
 		void stopTheWatching() {
@@ -154,27 +161,95 @@ public class BdvToBlenderView {
 			try {
 				while (keepWatching)
 				{
+					final long updateInterval = targetLatency;
 					long timeNow = System.currentTimeMillis();
 					if (dataSource.isLastRequestDataValid) {
 						if ((timeNow - dataSource.timeStampOfLastRequest) > updateInterval) {
 							//System.out.println("silence detected, going to send the current data");
-							dataSource.isLastRequestDataValid = false;
-							sendBdvSpotsToBlender();
+							sendPendingUpdate();
 							lastUpdateTimeStamp = timeNow;
-						} else if ((timeNow - lastUpdateTimeStamp) > 4*updateInterval) {
+						} else if ((timeNow - lastUpdateTimeStamp) > MAX_DELAY_FACTOR*updateInterval) {
 							//System.out.println("long-ignored pending update detected, going to send the current data");
-							dataSource.isLastRequestDataValid = false;
-							sendBdvSpotsToBlender();
+							sendPendingUpdate();
 							lastUpdateTimeStamp = timeNow;
 						}
 					}
-					sleep(updateInterval/2);
+					sleep(Math.max(updateInterval/2, 1));
 				}
 			}
 			catch (InterruptedException e)
 			{ /* do nothing, silently stop */ }
 			System.out.println("Blender sender service stopped");
 		}
+
+		void sendPendingUpdate() {
+			dataSource.isLastRequestDataValid = false;
+			//all but the most recent request got superseded and thus never made it to Blender
+			final int requests = dataSource.noOfRequestsSinceLastSend.getAndSet(0);
+			if (requests > 1) noOfDroppedUpdates += requests-1;
+
+			sendBdvSpotsToBlender();
+			targetLatency = adaptedTargetLatency();
+		}
+	}
+
+	// ---------------------- adaptive coalescing of the updates ----------------------
+	/** the quiet period used before the sending time is measured for the first time */
+	static final long INITIAL_QUIET_PERIOD = 60;
+	/** the quiet period is never shorter, nor longer than these bounds */
+	static final long MIN_QUIET_PERIOD = 10;
+	static final long MAX_QUIET_PERIOD = 1000;
+	/** how many times the quiet period an update can be postponed when changes keep coming */
+	static final long MAX_DELAY_FACTOR = 4;
+	/** how many times the (smoothed) sending time is waited before a new sending is started */
+	static final double SEND_TIME_TO_QUIET_PERIOD_FACTOR = 2.0;
+	/** weight of the most recent measurement in the exponentially weighted moving averages */
+	static final double EWMA_ALPHA = 0.3;
+
+	private volatile long targetLatency = INITIAL_QUIET_PERIOD;
+	private volatile long noOfSentUpdates = 0;
+	private volatile long noOfDroppedUpdates = 0;
+	private double avgEncodeTime = -1; //negative means "not measured yet"
+	private double avgRpcTime = -1;
+	/** how long a sending waits for the Blender to confirm that it has received the data */
+	static final long RPC_ACK_TIMEOUT_MILLIS = 5000;
+
+	/** returns the current quiet period (in millis) the changes must calm down
+	 * for before the displayed content gets sent to Blender */
+	public long getCurrentTargetLatency() {
+		return targetLatency;
+	}
+
+	/** returns how many updates were sent to Blender so far */
+	public long getNoOfSentUpdates() {
+		return noOfSentUpdates;
+	}
+
+	/** returns how many updates (changes of the view or of the data) were
+	 * superseded by a later one, and were thus never sent to Blender */
+	public long getNoOfDroppedUpdates() {
+		return noOfDroppedUpdates;
+	}
+
+	/** returns the smoothed time (in millis) to assemble one message */
+	public double getAvgEncodeTime() {
+		return Math.max(avgEncodeTime, 0);
+	}
+
+	/** returns the smoothed time (in millis) to deliver one message to the Blender,
+	 * that is, until the Blender confirms it has received it */
+	public double getAvgRpcTime() {
+		return Math.max(avgRpcTime, 0);
+	}
+
+	static double updatedEWMA(final double currentAvg, final double newValue) {
+		return currentAvg < 0 ? newValue : EWMA_ALPHA*newValue + (1.0-EWMA_ALPHA)*currentAvg;
+	}
+
+	/** the slower the sending is, the longer we wait to coalesce more changes into one sending */
+	long adaptedTargetLatency() {
+		final long latency = Math.round( SEND_TIME_TO_QUIET_PERIOD_FACTOR * (getAvgEncodeTime()+getAvgRpcTime()) );
+		return Math.max(MIN_QUIET_PERIOD, Math.min(MAX_QUIET_PERIOD, latency));
 	}
 
 	final AffineTransform3D lastSentTransform = new AffineTransform3D();
@@ -200,7 +275,7 @@ public class BdvToBlenderView {
 	synchronized
 	void sendBdvSpotsToBlender()
 	{
-		long timeA = System.currentTimeMillis();
+		final long timeA = System.nanoTime();
 		viewBdv.getViewerPanelMamut().state().getViewerTransform(lastSentTransform);
 		lastSentTimepoint = viewBdv.getViewerPanelMamut().state().getCurrentTimepoint();
 		//System.out.println("new tp: "+lastSentTimepoint+", and new transform: "+lastSentTransform);
@@ -227,12 +302,40 @@ public class BdvToBlenderView {
 			spotsMsgBuilder.addSpheres( sBuilder );
 		});
 
+		final BucketsWithGraphics.BatchOfGraphics msg = spotsMsgBuilder.build();
+		final long timeB = System.nanoTime();
+
+		//the call only hands the message over to the gRPC's own threads, the sending
+		//is over when the Blender confirms it (or when it fails)
+		final CountDownLatch serverAck = new CountDownLatch(1);
 		final StreamObserver<BucketsWithGraphics.BatchOfGraphics> connMsg
-				= conn.commContinuous.replaceGraphics(new EmptyIgnoringStreamObservers());
-		connMsg.onNext( spotsMsgBuilder.build() );
+				= conn.commContinuous.replaceGraphics(new EmptyIgnoringStreamObservers() {
+					@Override
+					public void onError(Throwable throwable) {
+						System.out.println("Blender reported: "+throwable.getMessage());
+						serverAck.countDown();
+					}
+
+					@Override
+					public void onCompleted() {
+						serverAck.countDown();
+					}
+				});
+		connMsg.onNext( msg );
 		connMsg.onCompleted();
-		long timeB = System.currentTimeMillis();
+		try {
+			if (!serverAck.await(RPC_ACK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+				System.out.println("Blender has not confirmed the reception of the spots yet");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		final long timeC = System.nanoTime();
+
+		avgEncodeTime = updatedEWMA(avgEncodeTime, (timeB-timeA) / 1000000.0);
+		avgRpcTime = updatedEWMA(avgRpcTime, (timeC-timeB) / 1000000.0);
+		++noOfSentUpdates;
 		System.out.println("sent "+spotsMsgBuilder.getSpheresCount()
-				+" spots in "+(timeB-timeA)+" millis");
+				+" spots in "+(timeC-timeA)/1000000+" millis (next quiet period: "
+				+adaptedTargetLatency()+" millis, dropped updates so far: "+noOfDroppedUpdates+")");
 	}
 }
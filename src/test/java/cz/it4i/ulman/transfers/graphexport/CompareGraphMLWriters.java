@@ -0,0 +1,81 @@
+/*-
+ * #%L
+ * Online Mastodon Exports
+ * %%
+ * Copyright (C) 2021 - 2024 Vladimír Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cz.it4i.ulman.transfers.graphexport;
+
+import java.io.File;
+import java.io.IOException;
+
+/** compares the speed of the yEdGraphMLWriter and the GraphMLStreamWriter,
+ *  and checks that they both produce the same files */
+public class CompareGraphMLWriters {
+	public static void main(String[] args) throws IOException {
+		final int noOfNodes = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+		final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		final File oldFile = File.createTempFile("yEdGraphMLWriter", ".graphml");
+		final File newFile = File.createTempFile("GraphMLStreamWriter", ".graphml");
+		oldFile.deleteOnExit();
+		newFile.deleteOnExit();
+
+		//NB: the first rounds are the warm-up ones
+		for (int r = 0; r < rounds; ++r) {
+			long time = System.nanoTime();
+			final yEdGraphMLWriter oldWriter = new yEdGraphMLWriter(oldFile.getPath());
+			for (int i = 0; i < noOfNodes; ++i) {
+				final String id = Integer.toString(i);
+				oldWriter.addNode(id, "label"+i, color(i), i*3,(i%100)*100);
+				if (i > 0) oldWriter.addBendedLine(Integer.toString(i/2), id, i*3,(i%100)*100);
+			}
+			oldWriter.close();
+			final long oldTime = System.nanoTime() - time;
+
+			time = System.nanoTime();
+			final GraphMLStreamWriter newWriter = new GraphMLStreamWriter(newFile.getPath());
+			for (int i = 0; i < noOfNodes; ++i) {
+				newWriter.addNode(i, "label"+i, color(i), i*3,(i%100)*100);
+				if (i > 0) newWriter.addBendedLine(i/2, i, i*3,(i%100)*100);
+			}
+			newWriter.close();
+			final long newTime = System.nanoTime() - time;
+
+			System.out.printf("round %d: yEdGraphMLWriter %.1f ms, GraphMLStreamWriter %.1f ms (%.1fx), %.1f MB%n",
+					r+1, oldTime/1e6, newTime/1e6, (double)oldTime/newTime, newFile.length()/1e6);
+		}
+
+		final boolean same = java.util.Arrays.equals(
+				java.nio.file.Files.readAllBytes(oldFile.toPath()),
+				java.nio.file.Files.readAllBytes(newFile.toPath()));
+		System.out.println("files are the same: "+same);
+	}
+
+	/** an ARGB color with full alpha, as the tags' colors are */
+	static int color(final int i) {
+		return 0xFF000000 | ((i*977) & 0xFFFFFF);
+	}
+}
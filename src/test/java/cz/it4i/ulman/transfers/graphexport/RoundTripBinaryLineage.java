@@ -0,0 +1,124 @@
+/*-
+ * #%L
+ * Online Mastodon Exports
+ * %%
+ * Copyright (C) 2021 - 2024 Vladimír Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cz.it4i.ulman.transfers.graphexport;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/** writes a lineage with the BinaryLineageWriter, reads it back with the BinaryLineageReader
+ *  and checks that every node and edge came back the same, and that a truncated copy of
+ *  the file is refused */
+public class RoundTripBinaryLineage {
+	public static void main(String[] args) throws IOException {
+		final int noOfNodes = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+
+		final File file = File.createTempFile("BinaryLineageWriter", ".bin");
+		final File truncatedFile = File.createTempFile("BinaryLineageWriter", ".truncated.bin");
+		file.deleteOnExit();
+		truncatedFile.deleteOnExit();
+
+		//a binary tree, every even node is connected with a straight line, every odd with a bended one,
+		//the nodes are handed over in batches (with their timepoints) as the LineageExporter does it
+		long time = System.nanoTime();
+		final BinaryLineageWriter writer = new BinaryLineageWriter(file.getPath(), null);
+		final int batchSize = 1000;
+		final int[] ids = new int[batchSize], colors = new int[batchSize];
+		final int[] xs = new int[batchSize], ys = new int[batchSize], tps = new int[batchSize];
+		final String[] labels = new String[batchSize];
+		for (int from = 0; from < noOfNodes; from += batchSize) {
+			final int count = Math.min(batchSize, noOfNodes-from);
+			for (int k = 0; k < count; ++k) {
+				final int i = from+k;
+				ids[k] = i; labels[k] = label(i); colors[k] = color(i);
+				xs[k] = x(i); ys[k] = y(i); tps[k] = timepoint(i);
+			}
+			writer.addNodes(ids, labels, colors, xs, ys, tps, count);
+		}
+		for (int i = 1; i < noOfNodes; ++i) {
+			if (i % 2 == 0) writer.addStraightLine(i/2, i);
+			else writer.addBendedLine(i/2, i, x(i),y(i));
+		}
+		writer.close();
+		System.out.printf("written %d nodes in %.1f ms, %.1f MB%n",
+				noOfNodes, (System.nanoTime()-time)/1e6, file.length()/1e6);
+
+		time = System.nanoTime();
+		int errors = 0;
+		try (BinaryLineageReader reader = new BinaryLineageReader(file.toPath())) {
+			if (reader.getNoOfNodes() != noOfNodes) {
+				System.out.println("expected "+noOfNodes+" nodes, got "+reader.getNoOfNodes());
+				++errors;
+			}
+			if (reader.getNoOfEdges() != Math.max(noOfNodes-1, 0)) {
+				System.out.println("expected "+(noOfNodes-1)+" edges, got "+reader.getNoOfEdges());
+				++errors;
+			}
+			for (int n = 0; n < Math.min(noOfNodes, reader.getNoOfNodes()) && errors < 10; ++n) {
+				final int i = reader.getNodeId(n);
+				if (i != n || !label(i).equals(reader.getLabel(n)) || reader.getColor(n) != color(i)
+						|| reader.getX(n) != x(i) || reader.getY(n) != y(i)
+						|| reader.getTimepoint(n) != timepoint(i)
+						|| reader.getParent(n) != (i == 0 ? -1 : i/2)) {
+					System.out.println("node "+n+" came back different");
+					++errors;
+				}
+			}
+			for (int e = 0; e < reader.getNoOfEdges() && errors < 10; ++e) {
+				final int to = reader.getEdgeTo(e);
+				final boolean shallBend = to % 2 == 1;
+				if (reader.getEdgeFrom(e) != to/2 || reader.isEdgeBended(e) != shallBend
+						|| (shallBend && (reader.getEdgeBendX(e) != x(to) + writer.get_defaultNodeWidth()/2
+						                  || reader.getEdgeBendY(e) != y(to) + writer.get_defaultBendingPointAbsoluteOffsetY()))) {
+					System.out.println("edge "+e+" came back different");
+					++errors;
+				}
+			}
+		}
+		System.out.printf("read and checked in %.1f ms, errors: %d%n", (System.nanoTime()-time)/1e6, errors);
+
+		//the file without its last edge column (or at least without its last int)
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		     FileChannel out = FileChannel.open(truncatedFile.toPath(), StandardOpenOption.WRITE)) {
+			in.transferTo(0, Math.max(in.size() - 4L*Math.max(noOfNodes-1, 1), 0), out);
+		}
+		try (BinaryLineageReader reader = new BinaryLineageReader(truncatedFile.toPath())) {
+			System.out.println("truncated file was NOT recognized, claims "+reader.getNoOfNodes()+" nodes");
+		} catch (IOException e) {
+			System.out.println("truncated file was recognized: "+e.getMessage());
+		}
+	}
+
+	static String label(final int i) { return "spot "+i; }
+	static int color(final int i) { return (i*977) & 0xFFFFFF; }
+	static int x(final int i) { return i*3; }
+	static int y(final int i) { return (i%100)*100; }
+	static int timepoint(final int i) { return 31 - Integer.numberOfLeadingZeros(i+1); }
+}